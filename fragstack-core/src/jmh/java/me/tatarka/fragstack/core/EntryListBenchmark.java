@@ -0,0 +1,83 @@
+package me.tatarka.fragstack.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stack operations used by push, pop and pop to tag at different stack depths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryListBenchmark {
+
+    private static final String[] SCREENS = {"home", "list", "detail", "settings"};
+
+    @Param({"10", "100", "1000", "10000"})
+    int depth;
+
+    private EntryList<TestEntry> entries;
+    private TestEntry[] top;
+
+    @Setup
+    public void setup() {
+        entries = new EntryList<>();
+        // The home screen is only at the bottom, like a typical "pop to home".
+        entries.add(new TestEntry("home"));
+        for (int i = 1; i < depth; i++) {
+            entries.add(new TestEntry(SCREENS[1 + i % (SCREENS.length - 1)]));
+        }
+        top = new TestEntry[4];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = new TestEntry(SCREENS[1 + i % (SCREENS.length - 1)]);
+        }
+    }
+
+    @Benchmark
+    public EntryList<TestEntry> pushPop() {
+        entries.add(top[0]);
+        entries.removeLast();
+        return entries;
+    }
+
+    @Benchmark
+    public int findTag() {
+        return entries.lastIndexOf("home");
+    }
+
+    @Benchmark
+    public EntryList<TestEntry> popToTag() {
+        for (TestEntry entry : top) {
+            entries.add(entry);
+        }
+        entries.truncate(entries.popIndex("detail", true));
+        return entries;
+    }
+
+    static final class TestEntry implements EntryList.Entry {
+        final String tag;
+
+        TestEntry(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public String getTag() {
+            return tag;
+        }
+    }
+}
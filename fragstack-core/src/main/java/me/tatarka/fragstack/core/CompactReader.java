@@ -0,0 +1,72 @@
+package me.tatarka.fragstack.core;
+
+import java.util.ArrayList;
+
+/**
+ * Reads back-stack metadata written by a {@link CompactWriter}.
+ */
+public final class CompactReader {
+    private final byte[] buffer;
+    private int position;
+    private final ArrayList<String> strings = new ArrayList<>();
+
+    public CompactReader(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads the version written by {@link CompactWriter#writeVersion(int)}.
+     *
+     * @throws IllegalArgumentException if it's not the expected version.
+     */
+    public void readVersion(int expected) {
+        int version = readVarInt();
+        if (version != expected) {
+            throw new IllegalArgumentException("Unknown version " + version + ", expected " + expected);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the varint is malformed or truncated.
+     */
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= buffer.length) {
+                throw new IllegalArgumentException("Unexpected end of input");
+            }
+            byte b = buffer[position++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * @throws IllegalArgumentException if the string is malformed or truncated.
+     */
+    public String readString() {
+        int header = readVarInt();
+        if (header == 0) {
+            return null;
+        }
+        if ((header & 1) == 0) {
+            int index = (header >>> 1) - 1;
+            if (index >= strings.size()) {
+                throw new IllegalArgumentException("Unknown string index: " + index);
+            }
+            return strings.get(index);
+        }
+        int length = header >>> 1;
+        // Compared this way round so a corrupt length can't overflow.
+        if (length < 0 || length > buffer.length - position) {
+            throw new IllegalArgumentException("Unexpected end of input");
+        }
+        String value = new String(buffer, position, length, CompactWriter.UTF_8);
+        position += length;
+        strings.add(value);
+        return value;
+    }
+}
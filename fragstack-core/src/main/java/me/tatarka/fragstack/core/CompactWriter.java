@@ -0,0 +1,71 @@
+package me.tatarka.fragstack.core;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes a compact binary form of back-stack metadata. Ints are written as varints and strings
+ * are interned into a table, so repeated class names and tags are only written once.
+ *
+ * @see CompactReader
+ */
+public final class CompactWriter {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buffer = new byte[64];
+    private int size;
+    private final HashMap<String, Integer> strings = new HashMap<>();
+
+    /**
+     * Writes the version of the format, to be checked with {@link CompactReader#readVersion(int)}.
+     */
+    public void writeVersion(int version) {
+        writeVarInt(version);
+    }
+
+    /**
+     * Writes a non-negative int in 1 to 5 bytes, smaller values taking fewer bytes.
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Writes a nullable string. The first time a string is written it's written in full, after
+     * that only its index in the table is.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer index = strings.get(value);
+        if (index != null) {
+            // Shifted by one, 0 is null and odd values are new strings.
+            writeVarInt((index << 1) + 2);
+            return;
+        }
+        strings.put(value, strings.size());
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt((bytes.length << 1) | 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int count) {
+        if (size + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+        }
+    }
+}
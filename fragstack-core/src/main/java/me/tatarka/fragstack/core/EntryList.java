@@ -0,0 +1,218 @@
+package me.tatarka.fragstack.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The list of back-stack entries. Keeps an index of tags so that finding the last entry with a
+ * given tag is constant time, and removing entries from the top is proportional only to the number
+ * removed.
+ *
+ * @param <E> the entry type.
+ */
+public final class EntryList<E extends EntryList.Entry> {
+
+    /**
+     * An entry in the back-stack.
+     */
+    public interface Entry {
+        /**
+         * Returns the tag of the entry, or null if it doesn't have one.
+         */
+        String getTag();
+    }
+
+    /**
+     * Compares an entry to the one it would be replaced with.
+     *
+     * @param <E> the entry type.
+     * @param <T> the replacement type.
+     */
+    public interface Matcher<E, T> {
+        boolean matches(E entry, T replacement);
+    }
+
+    /**
+     * Notified as entries are added to and removed from the list, to keep derived state such as
+     * running totals up to date without iterating over the whole list.
+     *
+     * @param <E> the entry type.
+     */
+    public interface Listener<E> {
+        void onAdded(E entry);
+
+        void onRemoved(E entry);
+    }
+
+    private final ArrayList<E> entries = new ArrayList<>();
+    private final Listener<? super E> listener;
+    /**
+     * The index of the last entry with a given tag.
+     */
+    private final HashMap<String, Integer> lastIndexOfTag = new HashMap<>();
+    /**
+     * For each entry, the index of the previous entry with the same tag or -1 if there isn't one.
+     */
+    private int[] previousIndexOfTag = new int[16];
+
+    public EntryList() {
+        this(null);
+    }
+
+    public EntryList(Listener<? super E> listener) {
+        this.listener = listener;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public E get(int index) {
+        return entries.get(index);
+    }
+
+    public void add(E entry) {
+        int index = entries.size();
+        if (index == previousIndexOfTag.length) {
+            previousIndexOfTag = Arrays.copyOf(previousIndexOfTag, index * 2);
+        }
+        String tag = entry.getTag();
+        if (tag != null) {
+            Integer previous = lastIndexOfTag.put(tag, index);
+            previousIndexOfTag[index] = previous != null ? previous : -1;
+        } else {
+            previousIndexOfTag[index] = -1;
+        }
+        entries.add(entry);
+        if (listener != null) {
+            listener.onAdded(entry);
+        }
+    }
+
+    /**
+     * Inserts the entry at the given index, shifting the entries at and above it up.
+     */
+    public void add(int index, E entry) {
+        if (index == entries.size()) {
+            add(entry);
+        } else {
+            entries.add(index, entry);
+            reindex();
+            if (listener != null) {
+                listener.onAdded(entry);
+            }
+        }
+    }
+
+    public void addAll(List<? extends E> entries) {
+        for (int i = 0; i < entries.size(); i++) {
+            add(entries.get(i));
+        }
+    }
+
+    /**
+     * Removes and returns the top entry.
+     */
+    public E removeLast() {
+        int index = entries.size() - 1;
+        E entry = entries.get(index);
+        truncate(index);
+        return entry;
+    }
+
+    /**
+     * Removes all entries at and above the given index.
+     */
+    public void truncate(int fromIndex) {
+        int size = entries.size();
+        for (int i = size - 1; i >= fromIndex; i--) {
+            E entry = entries.get(i);
+            String tag = entry.getTag();
+            if (tag != null) {
+                int previous = previousIndexOfTag[i];
+                if (previous != -1) {
+                    lastIndexOfTag.put(tag, previous);
+                } else {
+                    lastIndexOfTag.remove(tag);
+                }
+            }
+            if (listener != null) {
+                listener.onRemoved(entry);
+            }
+        }
+        entries.subList(fromIndex, size).clear();
+    }
+
+    /**
+     * Removes the given number of entries from the bottom.
+     */
+    public void removeFirst(int count) {
+        if (listener != null) {
+            for (int i = 0; i < count; i++) {
+                listener.onRemoved(entries.get(i));
+            }
+        }
+        entries.subList(0, count).clear();
+        reindex();
+    }
+
+    private void reindex() {
+        lastIndexOfTag.clear();
+        if (previousIndexOfTag.length < entries.size()) {
+            previousIndexOfTag = new int[Math.max(16, Integer.highestOneBit(entries.size()) * 2)];
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            String tag = entries.get(i).getTag();
+            Integer previous = tag != null ? lastIndexOfTag.put(tag, i) : null;
+            previousIndexOfTag[i] = previous != null ? previous : -1;
+        }
+    }
+
+    /**
+     * Returns the index of the last entry with the given tag, or -1 if there isn't one.
+     */
+    public int lastIndexOf(String tag) {
+        Integer index = lastIndexOfTag.get(tag);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Returns the index of the entry that would become the top when popping to the given tag, or
+     * -1 if the tag isn't in the list. If inclusive, this is the entry below the last one with the
+     * tag, unless that is the bottom entry.
+     */
+    public int popIndex(String tag, boolean inclusive) {
+        int index = lastIndexOf(tag);
+        if (inclusive && index > 0) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of entries from the bottom that match the given replacements in order,
+     * stopping at the first that doesn't. When replacing the whole list, these are the entries that
+     * can be kept along with their state.
+     */
+    public <T> int matchingPrefix(List<? extends T> replacements, Matcher<? super E, ? super T> matcher) {
+        int size = Math.min(entries.size(), replacements.size());
+        int count = 0;
+        while (count < size && matcher.matches(entries.get(count), replacements.get(count))) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the backing list, used for saving state. This must not be modified.
+     */
+    public ArrayList<E> asArrayList() {
+        return entries;
+    }
+}
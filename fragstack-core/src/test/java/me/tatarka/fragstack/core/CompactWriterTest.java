@@ -0,0 +1,108 @@
+package me.tatarka.fragstack.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompactWriterTest {
+
+    @Test
+    public void round_trips_varints() {
+        CompactWriter writer = new CompactWriter();
+        int[] values = {0, 1, 127, 128, 16383, 16384, 0x7f01000c, Integer.MAX_VALUE, -1};
+        for (int value : values) {
+            writer.writeVarInt(value);
+        }
+
+        CompactReader reader = new CompactReader(writer.toByteArray());
+        for (int value : values) {
+            assertEquals(value, reader.readVarInt());
+        }
+    }
+
+    @Test
+    public void small_varints_take_one_byte() {
+        CompactWriter writer = new CompactWriter();
+        writer.writeVarInt(0);
+        writer.writeVarInt(127);
+
+        assertEquals(2, writer.toByteArray().length);
+    }
+
+    @Test
+    public void round_trips_strings() {
+        CompactWriter writer = new CompactWriter();
+        writer.writeString("com.example.DetailFragment");
+        writer.writeString(null);
+        writer.writeString("tag");
+        writer.writeString("com.example.DetailFragment");
+        writer.writeString("\u00e9t\u00e9");
+
+        CompactReader reader = new CompactReader(writer.toByteArray());
+        assertEquals("com.example.DetailFragment", reader.readString());
+        assertNull(reader.readString());
+        assertEquals("tag", reader.readString());
+        assertEquals("com.example.DetailFragment", reader.readString());
+        assertEquals("\u00e9t\u00e9", reader.readString());
+    }
+
+    @Test
+    public void repeated_strings_are_only_written_once() {
+        CompactWriter once = new CompactWriter();
+        once.writeString("com.example.DetailFragment");
+        CompactWriter repeated = new CompactWriter();
+        for (int i = 0; i < 10; i++) {
+            repeated.writeString("com.example.DetailFragment");
+        }
+
+        assertEquals(once.toByteArray().length + 9, repeated.toByteArray().length);
+    }
+
+    @Test
+    public void round_trips_versioned_entries() {
+        CompactWriter writer = new CompactWriter();
+        writer.writeVersion(3);
+        writer.writeVarInt(2);
+        writer.writeString("com.example.ListFragment");
+        writer.writeString(null);
+        writer.writeString("com.example.DetailFragment");
+        writer.writeString("detail");
+
+        CompactReader reader = new CompactReader(writer.toByteArray());
+        reader.readVersion(3);
+        assertEquals(2, reader.readVarInt());
+        assertEquals("com.example.ListFragment", reader.readString());
+        assertNull(reader.readString());
+        assertEquals("com.example.DetailFragment", reader.readString());
+        assertEquals("detail", reader.readString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_unknown_version() {
+        CompactWriter writer = new CompactWriter();
+        writer.writeVersion(2);
+        writer.writeVarInt(0);
+
+        new CompactReader(writer.toByteArray()).readVersion(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void throws_on_truncated_input() {
+        CompactWriter writer = new CompactWriter();
+        writer.writeString("com.example.DetailFragment");
+        byte[] bytes = writer.toByteArray();
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        new CompactReader(truncated).readString();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void throws_on_string_length_past_end_of_input() {
+        // A string header with a length of Integer.MAX_VALUE, followed by a single byte.
+        byte[] bytes = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 'a'};
+
+        new CompactReader(bytes).readString();
+    }
+}
@@ -0,0 +1,149 @@
+package me.tatarka.fragstack.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntryListTest {
+
+    @Test
+    public void finds_last_index_of_tag() {
+        EntryList<TestEntry> entries = entries("a", "b", "a", null);
+
+        assertEquals(2, entries.lastIndexOf("a"));
+        assertEquals(1, entries.lastIndexOf("b"));
+        assertEquals(-1, entries.lastIndexOf("c"));
+    }
+
+    @Test
+    public void restores_previous_index_of_tag_on_truncate() {
+        EntryList<TestEntry> entries = entries("a", "b", "a", "b");
+
+        entries.truncate(2);
+
+        assertEquals(2, entries.size());
+        assertEquals(0, entries.lastIndexOf("a"));
+        assertEquals(1, entries.lastIndexOf("b"));
+    }
+
+    @Test
+    public void removes_tag_when_last_entry_with_it_is_removed() {
+        EntryList<TestEntry> entries = entries("a", "b");
+
+        TestEntry entry = entries.removeLast();
+
+        assertEquals("b", entry.getTag());
+        assertEquals(-1, entries.lastIndexOf("b"));
+    }
+
+    @Test
+    public void reindexes_tags_on_remove_first() {
+        EntryList<TestEntry> entries = entries("a", "b", "a", "c");
+
+        entries.removeFirst(1);
+        entries.truncate(2);
+
+        assertEquals(1, entries.lastIndexOf("a"));
+        assertEquals(0, entries.lastIndexOf("b"));
+        assertEquals(-1, entries.lastIndexOf("c"));
+    }
+
+    @Test
+    public void reindexes_tags_on_insert() {
+        EntryList<TestEntry> entries = entries("a", "b");
+
+        entries.add(1, new TestEntry("c"));
+        entries.add(0, new TestEntry("b"));
+        entries.truncate(3);
+
+        assertEquals(1, entries.lastIndexOf("a"));
+        assertEquals(0, entries.lastIndexOf("b"));
+        assertEquals(2, entries.lastIndexOf("c"));
+    }
+
+    @Test
+    public void pop_index_is_below_tag_when_inclusive() {
+        EntryList<TestEntry> entries = entries("a", "b", "c");
+
+        assertEquals(1, entries.popIndex("b", false));
+        assertEquals(0, entries.popIndex("b", true));
+        assertEquals(0, entries.popIndex("a", true));
+        assertEquals(-1, entries.popIndex("d", true));
+    }
+
+    @Test
+    public void matching_prefix_stops_at_first_mismatch() {
+        EntryList<TestEntry> entries = entries("a", "b", "c");
+
+        assertEquals(3, entries.matchingPrefix(Arrays.asList("a", "b", "c"), SAME_TAG));
+        assertEquals(1, entries.matchingPrefix(Arrays.asList("a", "x", "c"), SAME_TAG));
+        assertEquals(0, entries.matchingPrefix(Arrays.asList("x", "b", "c"), SAME_TAG));
+    }
+
+    @Test
+    public void matching_prefix_is_bounded_by_shorter_list() {
+        EntryList<TestEntry> entries = entries("a", "b");
+
+        assertEquals(1, entries.matchingPrefix(Collections.singletonList("a"), SAME_TAG));
+        assertEquals(2, entries.matchingPrefix(Arrays.asList("a", "b", "c"), SAME_TAG));
+        assertEquals(0, entries.matchingPrefix(Collections.<String>emptyList(), SAME_TAG));
+        assertEquals(0, new EntryList<TestEntry>().matchingPrefix(Arrays.asList("a", "b"), SAME_TAG));
+    }
+
+    @Test
+    public void notifies_listener_of_added_and_removed_entries() {
+        final List<String> events = new ArrayList<>();
+        EntryList<TestEntry> entries = new EntryList<>(new EntryList.Listener<TestEntry>() {
+            @Override
+            public void onAdded(TestEntry entry) {
+                events.add("+" + entry.getTag());
+            }
+
+            @Override
+            public void onRemoved(TestEntry entry) {
+                events.add("-" + entry.getTag());
+            }
+        });
+
+        entries.addAll(Arrays.asList(new TestEntry("a"), new TestEntry("b"), new TestEntry("c")));
+        entries.add(1, new TestEntry("d"));
+        entries.removeLast();
+        entries.removeFirst(2);
+        entries.truncate(0);
+
+        assertEquals(Arrays.asList("+a", "+b", "+c", "+d", "-c", "-a", "-d", "-b"), events);
+    }
+
+    private static final EntryList.Matcher<TestEntry, String> SAME_TAG = new EntryList.Matcher<TestEntry, String>() {
+        @Override
+        public boolean matches(TestEntry entry, String replacement) {
+            return replacement.equals(entry.getTag());
+        }
+    };
+
+    private static EntryList<TestEntry> entries(String... tags) {
+        EntryList<TestEntry> entries = new EntryList<>();
+        for (String tag : tags) {
+            entries.add(new TestEntry(tag));
+        }
+        return entries;
+    }
+
+    static final class TestEntry implements EntryList.Entry {
+        final String tag;
+
+        TestEntry(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public String getTag() {
+            return tag;
+        }
+    }
+}
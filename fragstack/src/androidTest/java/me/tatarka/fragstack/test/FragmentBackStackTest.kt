@@ -1,10 +1,24 @@
 package me.tatarka.fragstack.test
 
+import android.arch.lifecycle.ViewModel
+import android.arch.lifecycle.ViewModelProvider
+import android.content.ComponentCallbacks2
+import android.os.Bundle
 import android.support.test.InstrumentationRegistry
 import android.support.test.rule.ActivityTestRule
 import android.support.test.runner.AndroidJUnit4
+import me.tatarka.fragstack.EvictionPolicy
 import me.tatarka.fragstack.FragmentBackStack
+import me.tatarka.fragstack.FragmentDescriptor
+import me.tatarka.fragstack.FragmentFactory
+import me.tatarka.fragstack.SavedStateBudget
+import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
 import org.junit.Rule
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -15,6 +29,12 @@ class FragmentBackStackTest {
     @get:Rule
     val activityTestRule = ActivityTestRule(EmptyActivity::class.java)
 
+    @After
+    fun tearDown() {
+        // Factories are global, don't let them leak into other tests.
+        FragmentBackStack.unregisterFragmentFactory(EmptyFragment::class.java)
+    }
+
     @Test
     fun starts_with_initial_fragment() {
         val activity = activityTestRule.activity
@@ -325,6 +345,74 @@ class FragmentBackStackTest {
         }
     }
 
+    @Test
+    fun pop_then_push_in_same_turn_does_not_recreate_popped_fragment() {
+        val activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val secondFragment = EmptyFragment.newInstance("second")
+        val thirdFragment = EmptyFragment.newInstance("third")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(secondFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+                .push(thirdFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("third", currentFragment.name)
+            assertEquals(
+                listOf(thirdFragment),
+                activity.supportFragmentManager.fragments.filterIsInstance<EmptyFragment>()
+            )
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = null),
+                    LifecycleEvent.OnStart,
+                    LifecycleEvent.OnStop,
+                    LifecycleEvent.OnDestroy
+                ), secondFragment.lifecycleEvents
+            )
+        }
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
     @Test
     fun pops_correctly_after_config_change() {
         var activity = activityTestRule.activity
@@ -499,6 +587,237 @@ class FragmentBackStackTest {
         }
     }
 
+    @Test
+    fun set_stack_keeps_matching_entries_and_only_creates_top_fragment() {
+        val activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val secondFragment = EmptyFragment.newInstance("second")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(secondFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .setStack(
+                    listOf(
+                        FragmentDescriptor(EmptyFragment::class.java, bundleOf("first")),
+                        FragmentDescriptor(EmptyFragment::class.java, bundleOf("third")),
+                        FragmentDescriptor(EmptyFragment::class.java, bundleOf("fourth"))
+                    )
+                )
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("fourth", currentFragment.name)
+            assertEquals(
+                listOf(currentFragment),
+                activity.supportFragmentManager.fragments.filterIsInstance<EmptyFragment>()
+            )
+            assertEquals(LifecycleEvent.OnDestroy, secondFragment.lifecycleEvents.last())
+            val backStack = FragmentBackStack.of(activity.supportFragmentManager)
+            assertEquals(2, backStack.depth)
+            backStack.pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("third", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = null),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun inserted_entry_is_only_created_when_popped_to() {
+        val activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val thirdFragment = EmptyFragment.newInstance("third")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+                .push(thirdFragment)
+                .insert(1, FragmentDescriptor(EmptyFragment::class.java, bundleOf("second")))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val backStack = FragmentBackStack.of(activity.supportFragmentManager)
+            assertEquals(2, backStack.depth)
+            backStack.pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("second", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = null),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun accounts_saved_state_by_class_and_drops_entries_over_budget() {
+        val activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val secondFragment = EmptyFragment.newInstance("second")
+        val thirdFragment = EmptyFragment.newInstance("third")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+                .push(secondFragment)
+                .push(thirdFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val backStack = FragmentBackStack.of(activity.supportFragmentManager)
+            val usage = backStack.savedStateUsage
+            assertEquals(2, usage.entryCount)
+            assertEquals(1, usage.classes.size)
+            assertEquals(EmptyFragment::class.java.name, usage.classes[0].name)
+            assertEquals(2, usage.classes[0].entryCount)
+            assertEquals(usage.totalSize, usage.classes[0].totalSize)
+
+            backStack.setSavedStateBudget(SavedStateBudget.drop(0))
+            assertEquals(0, backStack.depth)
+            assertEquals(0, backStack.savedStateUsage.totalSize)
+        }
+    }
+
+    @Test
+    fun eviction_policy_sees_entries_and_drops_oldest() {
+        val activity = activityTestRule.activity
+
+        val evictedTags = mutableListOf<List<String?>>()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .setEvictionPolicy(object : EvictionPolicy() {
+                    override fun evict(entries: List<EvictionPolicy.Entry>, evictor: EvictionPolicy.Evictor) {
+                        evictedTags += entries.map { it.tag }
+                        assertEquals(EmptyFragment::class.java.name, entries[0].name)
+                        EvictionPolicy.maxDepth(1).evict(entries, evictor)
+                    }
+                })
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"), "first")
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"), "second")
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("third"), "third")
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val backStack = FragmentBackStack.of(activity.supportFragmentManager)
+            assertEquals(listOf(listOf("first"), listOf("first", "second")), evictedTags)
+            assertEquals(1, backStack.depth)
+            backStack.pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("second", currentFragment.name)
+            assertEquals(0, FragmentBackStack.of(activity.supportFragmentManager).depth)
+        }
+    }
+
+    @Test
+    fun posts_navigations_from_background_thread_in_order() {
+        val activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val secondFragment = EmptyFragment.newInstance("second")
+        val thirdFragment = EmptyFragment.newInstance("third")
+
+        lateinit var backStack: FragmentBackStack
+        activityTestRule.runOnUiThread {
+            backStack = FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+        }
+
+        val thread = Thread {
+            backStack.post { it.push(secondFragment) }
+            backStack.post { it.push(thirdFragment) }
+            backStack.post { it.pop() }
+        }
+        thread.start()
+        thread.join()
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("second", currentFragment.name)
+            assertEquals(1, backStack.depth)
+        }
+    }
+
     @Test
     fun back_press_performs_immediate_pop() {
         val activity = activityTestRule.activity
@@ -594,4 +913,409 @@ class FragmentBackStackTest {
             )
         }
     }
-}
+
+    @Test
+    fun releases_retained_fragments_after_state_is_saved() {
+        val activity = activityTestRule.activity
+        val instrumentation = InstrumentationRegistry.getInstrumentation()
+
+        val firstFragment = EmptyFragment.newInstance("first")
+        val secondFragment = EmptyFragment.newInstance("second")
+        val thirdFragment = EmptyFragment.newInstance("third")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .setRetainedFragmentCount(2)
+                .startWith(android.R.id.content, firstFragment)
+        }
+
+        instrumentation.waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(secondFragment)
+        }
+
+        instrumentation.waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(thirdFragment)
+        }
+
+        instrumentation.waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            instrumentation.callActivityOnPause(activity)
+            instrumentation.callActivityOnSaveInstanceState(activity, Bundle())
+            instrumentation.callActivityOnStop(activity)
+            // Drops the retained entries after the state was saved.
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .resetTo(EmptyFragment.newInstance("fourth"))
+        }
+
+        instrumentation.waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            instrumentation.callActivityOnRestart(activity)
+            instrumentation.callActivityOnStart(activity)
+            instrumentation.callActivityOnResume(activity)
+        }
+
+        instrumentation.waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("fourth", currentFragment.name)
+            assertEquals(0, FragmentBackStack.of(activity.supportFragmentManager).depth)
+            assertEquals(
+                listOf(currentFragment),
+                activity.supportFragmentManager.fragments.filterIsInstance<EmptyFragment>()
+            )
+            assertEquals(LifecycleEvent.OnDestroy, firstFragment.lifecycleEvents.last())
+            assertEquals(LifecycleEvent.OnDestroy, secondFragment.lifecycleEvents.last())
+        }
+    }
+
+    @Test
+    fun runs_navigation_posted_after_state_is_saved_once_recreated() {
+        var activity = activityTestRule.activity
+
+        lateinit var backStack: FragmentBackStack
+        activityTestRule.runOnUiThread {
+            backStack = FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            InstrumentationRegistry.getInstrumentation().callActivityOnSaveInstanceState(activity, Bundle())
+        }
+
+        backStack.post { it.push(EmptyFragment.newInstance("second")) }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            activity.recreate()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            activity = activityTestRule.activity
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("second", currentFragment.name)
+            assertEquals(1, FragmentBackStack.of(activity.supportFragmentManager).depth)
+        }
+    }
+
+    @Test
+    fun pops_back_to_fragment_created_by_registered_factory() {
+        val activity = activityTestRule.activity
+
+        var created = 0
+        FragmentBackStack.registerFragmentFactory(EmptyFragment::class.java, FragmentFactory {
+            created++
+            EmptyFragment()
+        })
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            assertEquals(0, created)
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            assertEquals(1, created)
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun preloads_pop_target_when_idle() {
+        val activity = activityTestRule.activity
+
+        var created = 0
+        FragmentBackStack.registerFragmentFactory(EmptyFragment::class.java, FragmentFactory {
+            created++
+            EmptyFragment()
+        })
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .setPreloadPopTarget(true)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            assertEquals(1, created)
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            assertEquals(1, created)
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun returns_same_back_stack_for_fragment_manager() {
+        val activity = activityTestRule.activity
+
+        activityTestRule.runOnUiThread {
+            val backStack = FragmentBackStack.of(activity.supportFragmentManager)
+            backStack.startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+
+            assertSame(backStack, FragmentBackStack.of(activity.supportFragmentManager))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val fragment = activity.supportFragmentManager.findFragmentById(android.R.id.content)!!
+            assertNotSame(
+                FragmentBackStack.of(activity.supportFragmentManager),
+                FragmentBackStack.of(fragment.childFragmentManager)
+            )
+        }
+    }
+
+    @Test
+    fun pops_back_to_entries_spilled_on_trim_memory() {
+        val activity = activityTestRule.activity
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("third"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            activity.application.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("second", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "second_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun retains_view_models_of_entries_in_the_back_stack() {
+        val activity = activityTestRule.activity
+        lateinit var viewModel: TestViewModel
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .setRetainViewModels(true)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val fragment = activity.supportFragmentManager.findFragmentById(android.R.id.content)!!
+            viewModel = ViewModelProvider(fragment, ViewModelProvider.NewInstanceFactory()).get(TestViewModel::class.java)
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            assertFalse(viewModel.cleared)
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val fragment = activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", fragment.name)
+            assertSame(viewModel, ViewModelProvider(fragment, ViewModelProvider.NewInstanceFactory()).get(TestViewModel::class.java))
+        }
+    }
+
+    class TestViewModel : ViewModel() {
+        var cleared = false
+
+        override fun onCleared() {
+            cleared = true
+        }
+    }
+
+    @Test
+    fun keeps_entries_in_memory_across_config_change() {
+        var activity = activityTestRule.activity
+
+        val firstFragment = EmptyFragment.newInstance("first")
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, firstFragment)
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .push(EmptyFragment.newInstance("second"))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            activity.recreate()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            activity = activityTestRule.activity
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .pop()
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertEquals("first", currentFragment.name)
+            // The entry wasn't parcelled, so it still has the original args.
+            assertSame(firstFragment.arguments, currentFragment.arguments)
+            assertEquals(
+                listOf(
+                    LifecycleEvent.OnCreate(savedState = "first_state"),
+                    LifecycleEvent.OnStart
+                ), currentFragment.lifecycleEvents
+            )
+        }
+    }
+
+    @Test
+    fun adds_tracking_fragment_with_first_fragment() {
+        val activity = activityTestRule.activity
+
+        activityTestRule.runOnUiThread {
+            FragmentBackStack.of(activity.supportFragmentManager)
+                .startWith(android.R.id.content, EmptyFragment.newInstance("first"))
+
+            // Nothing is committed synchronously.
+            assertNull(activity.supportFragmentManager.findFragmentByTag(TRACKING_FRAGMENT_TAG))
+            assertNull(activity.supportFragmentManager.findFragmentById(android.R.id.content))
+        }
+
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityTestRule.runOnUiThread {
+            val trackingFragment = activity.supportFragmentManager.findFragmentByTag(TRACKING_FRAGMENT_TAG)
+            val currentFragment =
+                activity.supportFragmentManager.findFragmentById(android.R.id.content) as EmptyFragment
+            assertNotNull(trackingFragment)
+            assertEquals("first", currentFragment.name)
+            assertEquals(
+                listOf(trackingFragment, currentFragment),
+                activity.supportFragmentManager.fragments
+            )
+        }
+    }
+}
+
+private const val TRACKING_FRAGMENT_TAG = "me.tatarka.fragstack.BackStackTrackingFragment"
+
+private fun bundleOf(name: String) = Bundle().apply { putString("name", name) }
@@ -0,0 +1,36 @@
+package android.support.v4.app;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.RestrictTo;
+
+/**
+ * Edits a fragment's {@link Fragment.SavedState}. This lives in the support library's package to
+ * get at the saved state's bundle.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class FragstackSavedStates {
+
+    private FragstackSavedStates() {
+    }
+
+    /**
+     * Returns a copy of the saved state without the state of the fragment's view hierarchy, or the
+     * same saved state if it doesn't have any.
+     */
+    @NonNull
+    public static Fragment.SavedState withoutViewState(@NonNull Fragment.SavedState savedState) {
+        Bundle state = savedState.mState;
+        if (state == null) {
+            return savedState;
+        }
+        // The fragment's own state may contain the app's parcelables.
+        state.setClassLoader(FragstackSavedStates.class.getClassLoader());
+        if (!state.containsKey(FragmentManagerImpl.VIEW_STATE_TAG)) {
+            return savedState;
+        }
+        Bundle stripped = new Bundle(state);
+        stripped.remove(FragmentManagerImpl.VIEW_STATE_TAG);
+        return new Fragment.SavedState(stripped);
+    }
+}
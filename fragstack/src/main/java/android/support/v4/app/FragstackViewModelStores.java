@@ -0,0 +1,36 @@
+package android.support.v4.app;
+
+import android.arch.lifecycle.ViewModelStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+
+/**
+ * Moves a {@link ViewModelStore} between fragment instances, so that the view models of a fragment
+ * in the back-stack survive it being destroyed. This lives in the support library's package to get
+ * at the fragment's store field.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class FragstackViewModelStores {
+
+    private FragstackViewModelStores() {
+    }
+
+    /**
+     * Takes the fragment's view model store, if it has one, so that it won't be cleared when the
+     * fragment is destroyed.
+     */
+    @Nullable
+    public static ViewModelStore take(@NonNull Fragment fragment) {
+        ViewModelStore store = fragment.mViewModelStore;
+        fragment.mViewModelStore = null;
+        return store;
+    }
+
+    /**
+     * Gives the fragment the view model store. This must be called before it's added.
+     */
+    public static void put(@NonNull Fragment fragment, @NonNull ViewModelStore store) {
+        fragment.mViewModelStore = store;
+    }
+}
@@ -0,0 +1,160 @@
+package me.tatarka.fragstack;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Stores the args and saved state of back-stack entries on disk so they don't have to be kept in
+ * the saved instance state. Each store is a directory with one file per entry id.
+ */
+final class BackStackStateStore {
+    private static final String TAG = "BackStackStateStore";
+    private static final String DIR = "fragstack";
+
+    private static boolean swept;
+
+    static BackStackStateStore create(Context context) {
+        if (!swept) {
+            swept = true;
+            final File root = root(context);
+            final long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweep(root, bootTime);
+                }
+            });
+        }
+        return open(context, UUID.randomUUID().toString());
+    }
+
+    static BackStackStateStore open(Context context, String name) {
+        return new BackStackStateStore(name, new File(root(context), name));
+    }
+
+    static File root(Context context) {
+        return new File(ContextCompat.getNoBackupFilesDir(context), DIR);
+    }
+
+    /**
+     * Deletes the stores that were last modified before the given time. Stores are left behind
+     * when the process dies or by nested back-stacks that are never restored, but saved instance
+     * state doesn't survive a reboot, so nothing can refer to stores from before the device last
+     * booted.
+     */
+    static void sweep(File root, long before) {
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (dir.lastModified() < before) {
+                clear(dir);
+            }
+        }
+    }
+
+    private final String name;
+    private final File dir;
+
+    private BackStackStateStore(String name, File dir) {
+        this.name = name;
+        this.dir = dir;
+    }
+
+    @NonNull
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Writes the entry's args and saved state to disk.
+     *
+     * @return true if the entry was written, false otherwise.
+     */
+    boolean write(BackStackTrackingFragment.BackStackEntry entry) {
+        try {
+            byte[] bytes = entry.encodeState();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create " + dir);
+            }
+            FileOutputStream out = new FileOutputStream(file(entry.id));
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // RuntimeException is thrown when marshalling active objects like binders.
+            Log.w(TAG, "Unable to write state for " + entry.name, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the entry's args and saved state back from disk. They are decoded when the entry is
+     * used.
+     *
+     * @return true if the entry was read, false otherwise.
+     */
+    boolean read(BackStackTrackingFragment.BackStackEntry entry) {
+        File file = file(entry.id);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int read = in.read(bytes, offset, bytes.length - offset);
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+            entry.setEncodedState(bytes);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read state for " + entry.name, e);
+            return false;
+        }
+    }
+
+    void delete(int id) {
+        File file = file(id);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    void clear() {
+        clear(dir);
+    }
+
+    private static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File file(int id) {
+        return new File(dir, Integer.toString(id));
+    }
+}
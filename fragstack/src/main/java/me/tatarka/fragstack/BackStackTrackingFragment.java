@@ -1,15 +1,41 @@
 package me.tatarka.fragstack;
 
+import android.arch.lifecycle.ViewModel;
+import android.arch.lifecycle.ViewModelProvider;
+import android.arch.lifecycle.ViewModelStore;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.IdRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+import android.support.v4.app.FragstackSavedStates;
+import android.support.v4.app.FragstackViewModelStores;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+
+import me.tatarka.fragstack.core.CompactReader;
+import me.tatarka.fragstack.core.CompactWriter;
+import me.tatarka.fragstack.core.EntryList;
 
 /**
  * Internal fragment uses to save back-stack state.
@@ -18,21 +44,173 @@ public final class BackStackTrackingFragment extends Fragment {
     static final String TAG = "me.tatarka.fragstack.BackStackTrackingFragment";
     static final String STATE_BACK_STACK = "backStack";
     static final String STATE_CONTAINER_ID = "containerId";
+    static final String STATE_STORE = "store";
+    static final String STATE_NEXT_ENTRY_ID = "nextEntryId";
+    static final String STATE_RETAINED_FRAGMENT = "retainedFragment:";
+    static final String STATE_PRELOAD_CLASSES = "preloadClasses";
+    /**
+     * The number of entries at the top of the stack to keep in memory when spilling, so that a pop
+     * doesn't have to wait on disk.
+     */
+    private static final int SPILL_KEEP_ENTRY_COUNT = 1;
 
+    /**
+     * Finds the tracking fragment or creates a new one. A new one isn't added right away, instead
+     * it's added along with the first transaction at the end of the current main-loop turn.
+     */
     static BackStackTrackingFragment obtain(FragmentManager fm) {
         BackStackTrackingFragment fragment = (BackStackTrackingFragment) fm.findFragmentByTag(TAG);
         if (fragment == null) {
             fragment = new BackStackTrackingFragment();
-            fm.beginTransaction().add(fragment, TAG).commitNow();
+            fragment.pendingAdd = true;
+            fragment.scheduleExecutePending();
         }
         return fragment;
     }
 
+    static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * The fragment that is (or will be once pending operations are executed) at the top of the
+     * stack. This is null if the top is a popped entry that hasn't been instantiated yet.
+     */
     @Nullable
     Fragment currentFragment;
+    @Nullable
+    String currentTag;
+    /**
+     * A popped entry that will become the top of the stack once pending operations are executed.
+     */
+    @Nullable
+    BackStackEntry currentEntry;
+    /**
+     * The fragment that was last committed to the container.
+     */
+    @Nullable
+    Fragment committedFragment;
+    /**
+     * The entry that the committed fragment's state will be saved into once pending operations
+     * are executed.
+     */
+    @Nullable
+    BackStackEntry savingEntry;
+    @Nullable
+    AnimationOptions pendingAnimationOptions;
+    @Nullable
+    BackStackEntry pendingPopEntry;
+    @Nullable
+    PopAnimationOptions pendingPopAnimationOptions;
+    private boolean executePendingScheduled;
+    private boolean executePendingOnStart;
     private int containerId = -1;
+    /**
+     * Running totals of the args and saved state in the back-stack, for the saved state budget.
+     */
+    final SavedStateAccounting accounting = new SavedStateAccounting();
+    final EntryList<BackStackEntry> backStack = new EntryList<>(accounting);
+    boolean saveStateToDisk;
+    @Nullable
+    EvictionPolicy evictionPolicy;
+    @Nullable
+    SavedStateBudget savedStateBudget;
     @Nullable
-    ArrayList<BackStackEntry> backStack;
+    private BackStackStateStore store;
+    private int nextEntryId;
+    int retainedFragmentCount;
+    boolean retainViewModels;
+    int maxViewStateDepth = Integer.MAX_VALUE;
+    @Nullable
+    private BackStackViewModel viewModel;
+    /**
+     * Entries that are keeping their fragment alive in a detached state, oldest first.
+     */
+    private final ArrayList<BackStackEntry> retainedEntries = new ArrayList<>();
+    /**
+     * Retained fragments released after the state was saved, they are removed once started again.
+     */
+    private final ArrayList<Fragment> pendingRemovals = new ArrayList<>();
+    @Nullable
+    private Context applicationContext;
+    boolean preloadPopTarget;
+    boolean preloadClasses;
+    @Nullable
+    private BackStackEntry preloadedEntry;
+    @Nullable
+    private Fragment preloadedFragment;
+    private boolean preloadScheduled;
+    @Nullable
+    NavigationListener navigationListener;
+    /**
+     * The event for the pending operations, only tracked if there is a navigation listener.
+     */
+    @Nullable
+    NavigationEvent pendingEvent;
+    /**
+     * The event for the last committed navigation, waiting for its fragment to be resumed.
+     */
+    @Nullable
+    private NavigationEvent committedEvent;
+    /**
+     * Entries waiting to capture the state of their fragment when it's stopped.
+     */
+    private final SimpleArrayMap<Fragment, BackStackEntry> saveStateOnStop = new SimpleArrayMap<>();
+
+    /**
+     * Keeps the cached {@link FragmentBackStack} for this fragment manager alive.
+     */
+    @Nullable
+    FragmentBackStack instance;
+    /**
+     * If this fragment still has to be added to the fragment manager.
+     */
+    boolean pendingAdd;
+    /**
+     * If this fragment was destroyed by a configuration change.
+     */
+    private boolean changingConfigurations;
+
+    private final Runnable executePending = new Runnable() {
+        @Override
+        public void run() {
+            executePendingScheduled = false;
+            // This fragment may not be added yet, so go through the instance that created it.
+            FragmentBackStack backStack = instance;
+            if (backStack == null) {
+                FragmentManager fm = getFragmentManager();
+                backStack = fm != null ? FragmentBackStack.of(fm) : null;
+            }
+            if (backStack != null) {
+                backStack.executePending(BackStackTrackingFragment.this, true);
+            }
+        }
+    };
+
+    /**
+     * Schedules pending operations to be executed at the end of the current main-loop turn so that
+     * multiple push/pop calls are merged into a single transaction.
+     */
+    void scheduleExecutePending() {
+        if (!executePendingScheduled) {
+            executePendingScheduled = true;
+            MAIN_HANDLER.postAtFrontOfQueue(executePending);
+        }
+    }
+
+    void cancelExecutePending() {
+        if (executePendingScheduled) {
+            executePendingScheduled = false;
+            MAIN_HANDLER.removeCallbacks(executePending);
+        }
+    }
+
+    /**
+     * Defers pending operations until the fragment is started again, used when the state has
+     * already been saved.
+     */
+    void executePendingOnStart() {
+        cancelExecutePending();
+        executePendingOnStart = true;
+    }
 
     void setContainerId(@IdRes int containerId) {
         this.containerId = containerId;
@@ -48,59 +226,1164 @@ public final class BackStackTrackingFragment extends Fragment {
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        requireFragmentManager().registerFragmentLifecycleCallbacks(lifecycleCallbacks, false);
+        // Obtained up front as it also holds navigation requests, which may arrive once detached.
+        BackStackViewModel viewModel = viewModel();
         if (savedInstanceState != null) {
-            backStack = savedInstanceState.getParcelableArrayList(STATE_BACK_STACK);
+            // Use the live entries if this is a configuration change instead of unparcelling them.
+            preloadClasses = savedInstanceState.getBoolean(STATE_PRELOAD_CLASSES);
+            ArrayList<BackStackEntry> entries = viewModel.takeEntries();
+            if (entries == null) {
+                SavedBackStack savedBackStack = savedInstanceState.getParcelable(STATE_BACK_STACK);
+                if (savedBackStack != null) {
+                    entries = savedBackStack.entries;
+                }
+                // The classes are already loaded after a configuration change.
+                if (preloadClasses && entries != null) {
+                    preloadClasses(requireContext().getClassLoader(), entries);
+                }
+            }
+            if (entries != null) {
+                backStack.addAll(entries);
+            }
             containerId = savedInstanceState.getInt(STATE_CONTAINER_ID);
+            nextEntryId = savedInstanceState.getInt(STATE_NEXT_ENTRY_ID);
+            String storeName = savedInstanceState.getString(STATE_STORE);
+            if (storeName != null) {
+                store = BackStackStateStore.open(requireContext(), storeName);
+            }
+            // The fragment manager has recreated any retained fragments, find the new instances.
+            for (int i = 0; i < backStack.size(); i++) {
+                BackStackEntry entry = backStack.get(i);
+                Fragment fragment = requireFragmentManager().getFragment(savedInstanceState, STATE_RETAINED_FRAGMENT + i);
+                entry.retainedFragment = fragment;
+                if (fragment != null) {
+                    retainedEntries.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads and initializes the fragment classes of the restored entries in the background, so
+     * popping to them doesn't have to on the main thread.
+     */
+    static void preloadClasses(final ClassLoader classLoader, List<BackStackEntry> entries) {
+        final HashSet<String> names = new HashSet<>();
+        for (int i = 0; i < entries.size(); i++) {
+            names.add(entries.get(i).name);
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String name : names) {
+                    try {
+                        Class.forName(name, true, classLoader);
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        // Ignore, it will be reported when the fragment is instantiated.
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        applicationContext = context.getApplicationContext();
+        applicationContext.registerComponentCallbacks(componentCallbacks);
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        if (applicationContext != null) {
+            applicationContext.unregisterComponentCallbacks(componentCallbacks);
+            applicationContext = null;
+        }
+    }
+
+    private final ComponentCallbacks2 componentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                trimRetainedFragments(0);
+                spillEntries(SPILL_KEEP_ENTRY_COUNT);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimRetainedFragments(0);
+            spillEntries(SPILL_KEEP_ENTRY_COUNT);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    /**
+     * Records an operation for the navigation listener.
+     */
+    void recordOperation(@NavigationEvent.Operation int operation) {
+        if (navigationListener == null) {
+            return;
+        }
+        if (pendingEvent == null) {
+            pendingEvent = new NavigationEvent();
+        }
+        pendingEvent.operation = operation;
+        pendingEvent.operationCount++;
+    }
+
+    /**
+     * Called right before a navigation is committed, it will be dispatched once the fragment is
+     * resumed.
+     */
+    void beginNavigation(@NonNull NavigationEvent event, @NonNull Fragment fragment) {
+        if (committedEvent != null) {
+            dispatchNavigation(committedEvent);
+        }
+        event.fragment = fragment;
+        event.depth = backStack.size();
+        event.commitTimeNanos = System.nanoTime();
+        committedEvent = event;
+    }
+
+    private void dispatchNavigation(NavigationEvent event) {
+        event.fragment = null;
+        if (committedEvent == event) {
+            committedEvent = null;
+        }
+        if (navigationListener != null) {
+            navigationListener.onNavigation(event);
+        }
+    }
+
+    /**
+     * Sets the entry's saved state, recording its size for the navigation listener.
+     */
+    void setSavedState(FragmentManager fm, Fragment fragment, BackStackEntry entry) {
+        if (retainViewModels) {
+            // Take it before the fragment is destroyed so it isn't cleared.
+            putViewModelStore(entry, fragment);
+        }
+        entry.setSavedState(fm.saveFragmentInstanceState(fragment));
+        if (committedEvent != null) {
+            committedEvent.savedStateSize = entry.getSavedStateSize();
+            committedEvent.argsSize = entry.getArgsSize();
+        }
+        stripViewStates();
+        enforceSavedStateBudget();
+    }
+
+    /**
+     * Saves the fragment's state into the entry when it's stopped as part of being removed. This
+     * is to ensure onSaveInstanceState is called between onStop() and onDestroy().
+     */
+    void saveStateOnStop(Fragment fragment, BackStackEntry entry) {
+        saveStateOnStop.put(fragment, entry);
+    }
+
+    private final FragmentManager.FragmentLifecycleCallbacks lifecycleCallbacks = new FragmentManager.FragmentLifecycleCallbacks() {
+        @Override
+        public void onFragmentStopped(FragmentManager fm, Fragment f) {
+            BackStackEntry entry = saveStateOnStop.remove(f);
+            if (entry != null) {
+                setSavedState(fm, f, entry);
+            }
+        }
+
+        @Override
+        public void onFragmentResumed(FragmentManager fm, Fragment f) {
+            if (committedEvent != null && committedEvent.fragment == f) {
+                committedEvent.commitToResumedNanos = System.nanoTime() - committedEvent.commitTimeNanos;
+                dispatchNavigation(committedEvent);
+            }
+        }
+    };
+
+    /**
+     * Schedules the entry on the top of the back-stack to be instantiated when the main thread is
+     * idle, so that popping to it only has to add it. Any previously preloaded fragment is
+     * discarded as the stack has changed.
+     */
+    void schedulePreload() {
+        preloadedEntry = null;
+        preloadedFragment = null;
+        if (preloadPopTarget && !preloadScheduled && !backStack.isEmpty()) {
+            preloadScheduled = true;
+            Looper.myQueue().addIdleHandler(preload);
+        }
+    }
+
+    private final MessageQueue.IdleHandler preload = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            preloadScheduled = false;
+            // Skip if there are pending operations, the stack is about to change anyway.
+            if (isAdded() && !backStack.isEmpty() && currentEntry == null && currentFragment == committedFragment) {
+                BackStackEntry entry = backStack.get(backStack.size() - 1);
+                if (entry != preloadedEntry && entry.retainedFragment == null && loadEntry(entry)) {
+                    preloadedFragment = FragmentBackStack.instantiate(BackStackTrackingFragment.this, entry);
+                    preloadedEntry = entry;
+                }
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Returns the preloaded fragment for the given entry, or null if it hasn't been preloaded.
+     */
+    @Nullable
+    Fragment takePreloadedFragment(BackStackEntry entry) {
+        if (entry != preloadedEntry) {
+            return null;
+        }
+        Fragment fragment = preloadedFragment;
+        preloadedEntry = null;
+        preloadedFragment = null;
+        return fragment;
+    }
+
+    /**
+     * Keeps the entry's fragment alive so it can be reattached when popped back to.
+     */
+    void retainFragment(BackStackEntry entry, Fragment fragment) {
+        entry.retainedFragment = fragment;
+        retainedEntries.add(entry);
+    }
+
+    /**
+     * Takes the retained fragment from the entry, so it can be reattached.
+     */
+    @NonNull
+    Fragment takeRetainedFragment(BackStackEntry entry) {
+        Fragment fragment = entry.retainedFragment;
+        entry.retainedFragment = null;
+        retainedEntries.remove(entry);
+        return fragment;
+    }
+
+    /**
+     * Saves the state of the oldest retained fragments and removes them until at most the given
+     * number are left. Does nothing if the state has already been saved, as the retained fragments
+     * can't be removed at that point.
+     */
+    void trimRetainedFragments(int max) {
+        FragmentManager fm = getFragmentManager();
+        if (fm == null || fm.isStateSaved()) {
+            return;
+        }
+        while (retainedEntries.size() > max) {
+            BackStackEntry entry = retainedEntries.remove(0);
+            releaseRetainedFragment(fm, entry, true);
+        }
+    }
+
+    private void releaseRetainedFragment(FragmentManager fm, BackStackEntry entry, boolean saveState) {
+        Fragment fragment = entry.retainedFragment;
+        entry.retainedFragment = null;
+        if (saveState) {
+            if (entry.released) {
+                // It was restored from the store, take the args back from the fragment so the
+                // entry is complete again before the stored copy is invalidated below.
+                entry.args = fragment.getArguments();
+                entry.released = false;
+            }
+            if (retainViewModels) {
+                putViewModelStore(entry, fragment);
+            }
+            entry.setSavedState(fm.saveFragmentInstanceState(fragment));
+            invalidateStoredCopy(entry);
+        }
+        if (fm.isStateSaved()) {
+            // Removing it now would throw.
+            pendingRemovals.add(fragment);
+            return;
+        }
+        fm.beginTransaction()
+                .remove(fragment)
+                .commit();
+    }
+
+    /**
+     * Deletes the entry's copy in the store after its state changed in memory, it will be written
+     * again on the next save.
+     */
+    private void invalidateStoredCopy(BackStackEntry entry) {
+        if (entry.stored && store != null) {
+            store.delete(entry.id);
+            entry.stored = false;
+        }
+    }
+
+    /**
+     * Writes the args and saved state of all but the given number of top entries to disk and drops
+     * them from memory. They are read back when the entry is popped to. Does nothing if the state
+     * has already been saved, as the saved state would not know about the store.
+     */
+    void spillEntries(int keep) {
+        FragmentManager fm = getFragmentManager();
+        int end = backStack.size() - keep;
+        if (fm == null || fm.isStateSaved() || end <= 0) {
+            return;
+        }
+        for (int i = 0; i < end; i++) {
+            spill(backStack.get(i));
+        }
+    }
+
+    /**
+     * Writes the entry's args and saved state to disk and drops them from memory.
+     *
+     * @return true if the entry was spilled, false otherwise.
+     */
+    private boolean spill(BackStackEntry entry) {
+        // Skip entries that are already spilled or whose state hasn't been captured yet.
+        if (entry.released || entry.retainedFragment != null || entry == savingEntry || saveStateOnStop.containsValue(entry)) {
+            return false;
+        }
+        if (store == null) {
+            store = BackStackStateStore.create(applicationContext);
+        }
+        if (!entry.stored) {
+            assignId(entry);
+            entry.stored = store.write(entry);
+            if (!entry.stored) {
+                return false;
+            }
+        }
+        entry.release();
+        return true;
+    }
+
+    /**
+     * Ensures the entry's args and saved state are in memory, reading them back from disk if
+     * necessary.
+     *
+     * @return true if they are in memory, false if they couldn't be read back, in which case the
+     * entry is left released.
+     */
+    boolean loadEntry(BackStackEntry entry) {
+        if (entry.released) {
+            if (store == null || !store.read(entry)) {
+                return false;
+            }
+            entry.released = false;
+            entry.sizesChanged();
+        }
+        entry.decodeState();
+        return true;
+    }
+
+    /**
+     * Returns the entry to pop back to, loaded and ready to be instantiated. If the given entry
+     * can't be read back from disk it's dropped and the one below it is tried instead, returning
+     * null if there are none left.
+     */
+    @Nullable
+    BackStackEntry loadPopTarget(BackStackEntry entry) {
+        while (entry != savingEntry && entry != preloadedEntry && entry.retainedFragment == null && !loadEntry(entry)) {
+            discard(entry);
+            if (navigationListener != null) {
+                navigationListener.onEntryDropped(entry.name);
+            }
+            if (backStack.isEmpty()) {
+                return null;
+            }
+            entry = backStack.removeLast();
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the view hierarchy state of entries more than {@link #maxViewStateDepth} below the top.
+     * Entries that are still encoded are decoded, and entries that were spilled are read back and
+     * spilled again once stripped. Whether an entry was stripped is saved with it, so this only
+     * happens once per entry.
+     */
+    void stripViewStates() {
+        int end = backStack.size() - maxViewStateDepth;
+        for (int i = 0; i < end; i++) {
+            BackStackEntry entry = backStack.get(i);
+            if (entry.viewStateStripped) {
+                continue;
+            }
+            boolean spilled = entry.released;
+            if (!loadEntry(entry)) {
+                continue;
+            }
+            if (entry.savedState != null) {
+                Fragment.SavedState savedState = FragstackSavedStates.withoutViewState(entry.savedState);
+                if (savedState != entry.savedState) {
+                    entry.setSavedState(savedState);
+                    invalidateStoredCopy(entry);
+                }
+            }
+            entry.viewStateStripped = true;
+            if (spilled) {
+                spill(entry);
+            }
+        }
+    }
+
+    /**
+     * Runs the eviction policy, if any, over the back-stack.
+     */
+    void evict() {
+        stripViewStates();
+        if (evictionPolicy != null && !backStack.isEmpty()) {
+            evictionPolicy.evict(Collections.<EvictionPolicy.Entry>unmodifiableList(backStack.asArrayList()), evictor);
+        }
+        enforceSavedStateBudget();
+    }
+
+    /**
+     * Calls the {@link #savedStateBudget} if the back-stack's args and saved state are over it.
+     */
+    void enforceSavedStateBudget() {
+        if (savedStateBudget == null || backStack.isEmpty()) {
+            return;
+        }
+        if (accounting.getTotalSize() > savedStateBudget.getMaxBytes()) {
+            savedStateBudget.onOverBudget(accounting.getUsage(), Collections.<EvictionPolicy.Entry>unmodifiableList(backStack.asArrayList()), evictor);
+        }
+    }
+
+    private final EvictionPolicy.Evictor evictor = new EvictionPolicy.Evictor() {
+        @Override
+        public void drop(int count) {
+            for (int i = 0; i < count; i++) {
+                discard(backStack.get(i));
+            }
+            backStack.removeFirst(count);
+        }
+
+        @Override
+        public void strip(int index) {
+            BackStackEntry entry = backStack.get(index);
+            if (entry.retainedFragment != null) {
+                retainedEntries.remove(entry);
+                releaseRetainedFragment(requireFragmentManager(), entry, false);
+            }
+            if (!loadEntry(entry)) {
+                // It's not in memory, so there is nothing to strip.
+                return;
+            }
+            entry.setSavedState(null);
+            invalidateStoredCopy(entry);
+        }
+
+        @Override
+        public boolean spill(int index) {
+            FragmentManager fm = getFragmentManager();
+            // The saved state would not know about the store.
+            if (fm == null || fm.isStateSaved()) {
+                return false;
+            }
+            return BackStackTrackingFragment.this.spill(backStack.get(index));
+        }
+    };
+
+    /**
+     * Called when an entry is removed from the stack for good.
+     */
+    void discard(BackStackEntry entry) {
+        if (entry == savingEntry) {
+            savingEntry = null;
+        }
+        int saveStateOnStopIndex = saveStateOnStop.indexOfValue(entry);
+        if (saveStateOnStopIndex >= 0) {
+            saveStateOnStop.removeAt(saveStateOnStopIndex);
+        }
+        if (entry.retainedFragment != null) {
+            retainedEntries.remove(entry);
+            releaseRetainedFragment(requireFragmentManager(), entry, false);
+        }
+        if (entry.stored && store != null) {
+            store.delete(entry.id);
+            entry.stored = false;
+        }
+        if (retainViewModels) {
+            ViewModelStore viewModelStore = takeViewModelStore(entry);
+            if (viewModelStore != null) {
+                viewModelStore.clear();
+            }
+        }
+    }
+
+    /**
+     * Gives the entry a unique id, if it doesn't have one already.
+     */
+    void assignId(BackStackEntry entry) {
+        if (entry.id == BackStackEntry.NO_ID) {
+            entry.id = nextEntryId++;
+        }
+    }
+
+    /**
+     * Keeps the view model store of the entry's fragment, so it can be given back to the fragment
+     * when the entry is popped to.
+     */
+    void putViewModelStore(BackStackEntry entry, Fragment fragment) {
+        ViewModelStore viewModelStore = FragstackViewModelStores.take(fragment);
+        if (viewModelStore != null) {
+            assignId(entry);
+            viewModel().putViewModelStore(entry.id, viewModelStore);
+        }
+    }
+
+    @Nullable
+    ViewModelStore takeViewModelStore(BackStackEntry entry) {
+        if (entry.id == BackStackEntry.NO_ID) {
+            return null;
+        }
+        return viewModel().takeViewModelStore(entry.id);
+    }
+
+    private BackStackViewModel viewModel() {
+        if (viewModel == null) {
+            viewModel = new ViewModelProvider(this, VIEW_MODEL_FACTORY).get(BackStackViewModel.class);
+        }
+        return viewModel;
+    }
+
+    private static final ViewModelProvider.Factory VIEW_MODEL_FACTORY = new ViewModelProvider.Factory() {
+        @NonNull
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends ViewModel> T create(@NonNull Class<T> modelClass) {
+            return (T) new BackStackViewModel();
+        }
+    };
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (!pendingRemovals.isEmpty()) {
+            FragmentTransaction transaction = requireFragmentManager().beginTransaction();
+            for (int i = 0; i < pendingRemovals.size(); i++) {
+                transaction.remove(pendingRemovals.get(i));
+            }
+            pendingRemovals.clear();
+            transaction.commit();
+        }
+        if (executePendingOnStart) {
+            executePendingOnStart = false;
+            scheduleExecutePending();
+        }
+        FragmentBackStack backStack = FragmentBackStack.of(requireFragmentManager());
+        viewModel().startedBackStack = backStack;
+        // Not run right away, onStart() is called while the fragment manager is executing.
+        backStack.scheduleNavigationRequests();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        viewModel().startedBackStack = null;
+    }
+
+    /**
+     * Moves navigation requests posted while the state is saved into the view model, so they are
+     * run once started again even if that's after a configuration change. If this fragment hasn't
+     * been created yet they are left in the queue, to be run from its first onStart().
+     */
+    void holdNavigationRequests(Queue<NavigationRequest> requests) {
+        if (viewModel != null) {
+            viewModel.holdNavigationRequests(requests);
+        }
+    }
+
+    /**
+     * Returns the navigation requests held while the state was saved, if any.
+     */
+    @Nullable
+    List<NavigationRequest> takeNavigationRequests() {
+        return viewModel != null ? viewModel.takeNavigationRequests() : null;
+    }
+
+    /**
+     * Hands requests that arrive after this fragment was destroyed by a configuration change to
+     * the back-stack that replaced it.
+     *
+     * @return false if it wasn't destroyed by a configuration change, so the requests should be
+     * dropped.
+     */
+    boolean handOffNavigationRequests(Queue<NavigationRequest> requests) {
+        if (!changingConfigurations || viewModel == null) {
+            return false;
+        }
+        viewModel.holdNavigationRequests(requests);
+        if (viewModel.startedBackStack != null) {
+            viewModel.startedBackStack.scheduleNavigationRequests();
+        }
+        return true;
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        // Make sure any pending operations are committed before the state is saved.
+        if (executePendingScheduled) {
+            cancelExecutePending();
+            FragmentBackStack.of(requireFragmentManager()).executePending(this, false);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        requireFragmentManager().unregisterFragmentLifecycleCallbacks(lifecycleCallbacks);
+        FragmentBackStack.remove(requireFragmentManager());
+        instance = null;
+        changingConfigurations = getActivity() != null && getActivity().isChangingConfigurations();
+        cancelExecutePending();
+        if (preloadScheduled) {
+            preloadScheduled = false;
+            Looper.myQueue().removeIdleHandler(preload);
+        }
+        if (store != null && getActivity() != null && getActivity().isFinishing()) {
+            store.clear();
         }
     }
 
     @Override
     public void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
-        if (backStack != null) {
-            outState.putParcelableArrayList(STATE_BACK_STACK, backStack);
-            outState.putInt(STATE_CONTAINER_ID, containerId);
+        if (!backStack.isEmpty()) {
+            FragmentActivity activity = getActivity();
+            boolean changingConfigurations = activity != null && activity.isChangingConfigurations();
+            if (saveStateToDisk && !changingConfigurations) {
+                if (store == null) {
+                    store = BackStackStateStore.create(requireContext());
+                }
+                for (int i = 0; i < backStack.size(); i++) {
+                    BackStackEntry entry = backStack.get(i);
+                    if (!entry.stored) {
+                        assignId(entry);
+                        entry.stored = store.write(entry);
+                    }
+                }
+            }
+            for (int i = 0; i < backStack.size(); i++) {
+                Fragment fragment = backStack.get(i).retainedFragment;
+                if (fragment != null) {
+                    requireFragmentManager().putFragment(outState, STATE_RETAINED_FRAGMENT + i, fragment);
+                }
+            }
+            if (changingConfigurations) {
+                // Keep the live entries, they only need to be parcelled for process death.
+                viewModel().putEntries(new ArrayList<>(backStack.asArrayList()));
+            } else {
+                outState.putParcelable(STATE_BACK_STACK, new SavedBackStack(backStack.asArrayList()));
+            }
+            outState.putInt(STATE_NEXT_ENTRY_ID, nextEntryId);
+            if (store != null) {
+                outState.putString(STATE_STORE, store.getName());
+            }
+        }
+        outState.putInt(STATE_CONTAINER_ID, containerId);
+        if (preloadClasses) {
+            outState.putBoolean(STATE_PRELOAD_CLASSES, true);
+        }
+        if (navigationListener != null) {
+            navigationListener.onSaveState(backStack.size(), Parcels.sizeOf(outState));
         }
     }
 
-    public final static class BackStackEntry implements Parcelable {
+    public final static class BackStackEntry implements EntryList.Entry, EvictionPolicy.Entry {
         final String name;
         @Nullable
         final String tag;
         @Nullable
-        final Bundle args;
+        Bundle args;
         int popEnter;
         int popExit;
         @Nullable
         Fragment.SavedState savedState;
+        private int savedStateSize = -1;
+        private int argsSize = -1;
+        static final int NO_ID = -1;
+        /**
+         * Identifies the entry in the {@link BackStackStateStore} and {@link BackStackViewModel}.
+         */
+        int id = NO_ID;
+        /**
+         * The entry's fragment if it's being kept alive in a detached state.
+         */
+        @Nullable
+        Fragment retainedFragment;
+        /**
+         * If a copy of the args and saved state is in the {@link BackStackStateStore}.
+         */
+        boolean stored;
+        /**
+         * If the args and saved state are only in the {@link BackStackStateStore} and have to be
+         * loaded before they can be used.
+         */
+        boolean released;
+        /**
+         * If the args and saved state are still encoded as restored from a parcel. They are only
+         * decoded once they are used, so restoring a deep back-stack doesn't have to unparcel every
+         * entry. Entries with the same args share the same encoded args.
+         */
+        private boolean encoded;
+        /**
+         * If the view hierarchy state has been dropped from the saved state.
+         */
+        boolean viewStateStripped;
+        @Nullable
+        private byte[] encodedArgs;
+        @Nullable
+        private byte[] encodedSavedState;
+        /**
+         * The accounting of the back-stack the entry is in.
+         */
+        @Nullable
+        SavedStateAccounting accounting;
+        /**
+         * If the entry is counted in {@link #accounting}, with the sizes it was counted with.
+         */
+        boolean counted;
+        int countedArgsSize;
+        int countedSavedStateSize;
+        @Nullable
+        byte[] countedEncodedArgs;
 
-        BackStackEntry(Fragment fragment, @Nullable AnimationOptions animationOptions) {
+        private static final int STATE_INLINE = 0;
+        private static final int STATE_STORED = 1;
+        private static final int STATE_ENCODED = 2;
+
+        BackStackEntry(Fragment fragment, @Nullable String tag, @Nullable AnimationOptions animationOptions) {
             this.name = fragment.getClass().getName();
-            this.tag = fragment.getTag();
+            this.tag = tag;
             this.args = fragment.getArguments();
+            setAnimationOptions(animationOptions);
+        }
+
+        BackStackEntry(String name, @Nullable String tag, @Nullable Bundle args) {
+            this.name = name;
+            this.tag = tag;
+            this.args = args;
+        }
+
+        /**
+         * Returns the class name of the entry's fragment.
+         */
+        @NonNull
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the tag of the entry's fragment, if any.
+         */
+        @Nullable
+        @Override
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * Returns the size in bytes of the entry's saved state once parcelled, or 0 if it doesn't
+         * have any.
+         */
+        @Override
+        public int getSavedStateSize() {
+            if (savedStateSize == -1) {
+                decodeState();
+                savedStateSize = Parcels.sizeOf(savedState);
+            }
+            return savedStateSize;
+        }
+
+        /**
+         * Returns the size in bytes of the entry's args once parcelled, or 0 if it doesn't have
+         * any.
+         */
+        @Override
+        public int getArgsSize() {
+            if (argsSize == -1) {
+                // Encoded args are exactly the parcelled bundle, no need to decode them.
+                argsSize = encoded ? encodedArgs.length : Parcels.sizeOf(args);
+            }
+            return argsSize;
+        }
+
+        /**
+         * Returns if the entry's args and saved state have been written to disk and dropped from
+         * memory. They are read back when the entry is popped to.
+         */
+        @Override
+        public boolean isSpilled() {
+            return released;
+        }
+
+        void setSavedState(@Nullable Fragment.SavedState savedState) {
+            decodeState();
+            this.savedState = savedState;
+            // Measured now so accounting never has to parcel it again.
+            savedStateSize = Parcels.sizeOf(savedState);
+            viewStateStripped = false;
+            sizesChanged();
+        }
+
+        /**
+         * Updates the accounting of the back-stack the entry is in, if any, after its sizes changed
+         * or it was spilled or read back.
+         */
+        void sizesChanged() {
+            if (accounting != null) {
+                accounting.update(this);
+            }
+        }
+
+        boolean isEncoded() {
+            return encoded;
+        }
+
+        /**
+         * Returns the args if they are still encoded, which may be shared with other entries that
+         * were restored with the same args.
+         */
+        @Nullable
+        byte[] getEncodedArgs() {
+            return encoded ? encodedArgs : null;
+        }
+
+        /**
+         * Drops the args and saved state from memory, they must already be in the store.
+         */
+        void release() {
+            // Keep the sizes around for eviction policies.
+            getSavedStateSize();
+            getArgsSize();
+            args = null;
+            savedState = null;
+            encoded = false;
+            encodedArgs = null;
+            encodedSavedState = null;
+            released = true;
+            sizesChanged();
+        }
+
+        /**
+         * Returns the args and saved state marshalled into bytes.
+         *
+         * @throws RuntimeException if they contain active objects like binders.
+         */
+        byte[] encodeState() {
+            byte[] args = encodeArgs();
+            byte[] savedState = encodeSavedState();
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeByteArray(args);
+                parcel.writeByteArray(savedState);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Returns the args marshalled into bytes.
+         *
+         * @throws RuntimeException if they contain active objects like binders.
+         */
+        byte[] encodeArgs() {
+            if (encoded) {
+                return encodedArgs;
+            }
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeBundle(args);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Returns the saved state marshalled into bytes.
+         *
+         * @throws RuntimeException if it contains active objects like binders.
+         */
+        byte[] encodeSavedState() {
+            if (encoded) {
+                return encodedSavedState;
+            }
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeParcelable(savedState, 0);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Sets the args and saved state from bytes returned by {@link #encodeState()}, they will
+         * be decoded on first use.
+         */
+        void setEncodedState(byte[] encodedState) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(encodedState, 0, encodedState.length);
+                parcel.setDataPosition(0);
+                byte[] args = parcel.createByteArray();
+                byte[] savedState = parcel.createByteArray();
+                setEncodedState(args, savedState);
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * Sets the args and saved state from bytes returned by {@link #encodeArgs()} and
+         * {@link #encodeSavedState()}, they will be decoded on first use.
+         */
+        void setEncodedState(byte[] encodedArgs, byte[] encodedSavedState) {
+            encoded = true;
+            this.encodedArgs = encodedArgs;
+            this.encodedSavedState = encodedSavedState;
+            args = null;
+            savedState = null;
+        }
+
+        /**
+         * Decodes the args and saved state if they are still encoded. The encoded args may be
+         * shared, but each entry gets its own copy of them.
+         */
+        void decodeState() {
+            if (!encoded) {
+                return;
+            }
+            encoded = false;
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(encodedArgs, 0, encodedArgs.length);
+                parcel.setDataPosition(0);
+                args = parcel.readBundle(getClass().getClassLoader());
+                parcel.unmarshall(encodedSavedState, 0, encodedSavedState.length);
+                parcel.setDataPosition(0);
+                savedState = parcel.readParcelable(SavedState.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+            encodedArgs = null;
+            encodedSavedState = null;
+        }
+
+        void setAnimationOptions(@Nullable AnimationOptions animationOptions) {
             if (animationOptions != null) {
                 popEnter = animationOptions.popEnter;
                 popExit = animationOptions.popExit;
+            } else {
+                popEnter = 0;
+                popExit = 0;
             }
         }
 
-        BackStackEntry(Parcel in) {
+        /**
+         * Reads the entry written by {@link #writeCompact(CompactWriter)}, its state must be read
+         * with {@link #readState(Parcel)} after.
+         */
+        BackStackEntry(CompactReader in) {
             name = in.readString();
             tag = in.readString();
-            args = in.readBundle(getClass().getClassLoader());
-            popEnter = in.readInt();
-            popExit = in.readInt();
-            savedState = in.readParcelable(SavedState.class.getClassLoader());
+            popEnter = in.readVarInt();
+            popExit = in.readVarInt();
+            id = in.readVarInt() - 1;
+            viewStateStripped = in.readVarInt() != 0;
         }
 
-        @Override
-        public void writeToParcel(Parcel dest, int flags) {
+        /**
+         * Writes the entry without its state in a compact form where repeated names and tags are
+         * only written once.
+         */
+        void writeCompact(CompactWriter dest) {
             dest.writeString(name);
             dest.writeString(tag);
-            dest.writeBundle(args);
-            dest.writeInt(popEnter);
-            dest.writeInt(popExit);
-            dest.writeParcelable(savedState, flags);
+            dest.writeVarInt(popEnter);
+            dest.writeVarInt(popExit);
+            // Shifted so NO_ID is 0.
+            dest.writeVarInt(id + 1);
+            dest.writeVarInt(viewStateStripped ? 1 : 0);
+        }
+
+        void readState(Parcel in) {
+            int state = in.readInt();
+            if (state == STATE_STORED) {
+                stored = true;
+                savedStateSize = in.readInt();
+                argsSize = in.readInt();
+                released = true;
+            } else if (state == STATE_ENCODED) {
+                savedStateSize = in.readInt();
+                setEncodedState(in.createByteArray());
+            } else {
+                args = in.readBundle(getClass().getClassLoader());
+                savedState = in.readParcelable(SavedState.class.getClassLoader());
+            }
+        }
+
+        /**
+         * Reads the saved state written by {@link #writeSharedState(Parcel, byte[])}, using the given
+         * shared args.
+         */
+        void readSharedState(Parcel in, byte[] encodedArgs) {
+            savedStateSize = in.readInt();
+            setEncodedState(encodedArgs, in.createByteArray());
+        }
+
+        /**
+         * Writes only the saved state, for when the args are written to a table shared between
+         * entries.
+         */
+        void writeSharedState(Parcel dest, byte[] encodedSavedState) {
+            dest.writeInt(getSavedStateSize());
+            dest.writeByteArray(encodedSavedState);
+        }
+
+        /**
+         * Writes the args and saved state, or only their size if they are in the store.
+         */
+        void writeState(Parcel dest, int flags) {
+            if (stored) {
+                dest.writeInt(STATE_STORED);
+                dest.writeInt(getSavedStateSize());
+                dest.writeInt(getArgsSize());
+                return;
+            }
+            byte[] bytes;
+            try {
+                bytes = encodeState();
+            } catch (RuntimeException e) {
+                // Active objects like binders can't be marshalled, write them inline instead.
+                bytes = null;
+            }
+            if (bytes != null) {
+                dest.writeInt(STATE_ENCODED);
+                dest.writeInt(getSavedStateSize());
+                dest.writeByteArray(bytes);
+            } else {
+                dest.writeInt(STATE_INLINE);
+                dest.writeBundle(args);
+                dest.writeParcelable(savedState, flags);
+            }
+        }
+    }
+
+    /**
+     * The saved back-stack. The entries' names, tags, animations and ids are written together in a
+     * compact form with a shared string table, followed by a table of distinct args and the saved
+     * state of each entry.
+     */
+    public final static class SavedBackStack implements Parcelable {
+        private static final String TAG = "SavedBackStack";
+        private static final int VERSION = 4;
+        private static final int NO_ARGS_INDEX = -1;
+
+        final ArrayList<BackStackEntry> entries;
+
+        SavedBackStack(ArrayList<BackStackEntry> entries) {
+            this.entries = entries;
+        }
+
+        SavedBackStack(Parcel in) {
+            entries = new ArrayList<>();
+            CompactReader reader = new CompactReader(in.createByteArray());
+            int stateLength = in.readInt();
+            int stateStart = in.dataPosition();
+            try {
+                reader.readVersion(VERSION);
+                int size = reader.readVarInt();
+                entries.ensureCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    entries.add(new BackStackEntry(reader));
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unable to restore back-stack", e);
+                entries.clear();
+                // Skip the state so the rest of the bundle can still be read.
+                in.setDataPosition(stateStart + stateLength);
+                return;
+            }
+            byte[][] argsTable = new byte[in.readInt()][];
+            for (int i = 0; i < argsTable.length; i++) {
+                argsTable[i] = in.createByteArray();
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                BackStackEntry entry = entries.get(i);
+                int argsIndex = in.readInt();
+                if (argsIndex == NO_ARGS_INDEX) {
+                    entry.readState(in);
+                } else {
+                    entry.readSharedState(in, argsTable[argsIndex]);
+                }
+            }
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            CompactWriter writer = new CompactWriter();
+            writer.writeVersion(VERSION);
+            writer.writeVarInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                entries.get(i).writeCompact(writer);
+            }
+            dest.writeByteArray(writer.toByteArray());
+            // Write the length of the state, so it can be skipped if it can't be read.
+            int lengthPosition = dest.dataPosition();
+            dest.writeInt(0);
+            // Write each distinct args once and have entries refer to them by index.
+            ArrayList<byte[]> argsTable = new ArrayList<>();
+            HashMap<Bytes, Integer> argsIndexes = new HashMap<>();
+            int[] entryArgsIndexes = new int[entries.size()];
+            byte[][] savedStates = new byte[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                BackStackEntry entry = entries.get(i);
+                int argsIndex = NO_ARGS_INDEX;
+                if (!entry.stored) {
+                    try {
+                        savedStates[i] = entry.encodeSavedState();
+                        Bytes args = new Bytes(entry.encodeArgs());
+                        Integer index = argsIndexes.get(args);
+                        if (index == null) {
+                            index = argsTable.size();
+                            argsTable.add(args.bytes);
+                            argsIndexes.put(args, index);
+                        }
+                        argsIndex = index;
+                    } catch (RuntimeException e) {
+                        // Active objects like binders can't be marshalled, they'll be written inline.
+                    }
+                }
+                entryArgsIndexes[i] = argsIndex;
+            }
+            dest.writeInt(argsTable.size());
+            for (int i = 0; i < argsTable.size(); i++) {
+                dest.writeByteArray(argsTable.get(i));
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                BackStackEntry entry = entries.get(i);
+                int argsIndex = entryArgsIndexes[i];
+                dest.writeInt(argsIndex);
+                if (argsIndex == NO_ARGS_INDEX) {
+                    entry.writeState(dest, flags);
+                } else {
+                    entry.writeSharedState(dest, savedStates[i]);
+                }
+            }
+            int end = dest.dataPosition();
+            dest.setDataPosition(lengthPosition);
+            dest.writeInt(end - lengthPosition - 4);
+            dest.setDataPosition(end);
         }
 
         @Override
@@ -108,15 +1391,38 @@ public final class BackStackTrackingFragment extends Fragment {
             return 0;
         }
 
-        public static final Creator<BackStackEntry> CREATOR = new Creator<BackStackEntry>() {
+        /**
+         * Compares encoded args by content.
+         */
+        private static final class Bytes {
+            final byte[] bytes;
+            private final int hashCode;
+
+            Bytes(byte[] bytes) {
+                this.bytes = bytes;
+                this.hashCode = Arrays.hashCode(bytes);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Bytes && hashCode == ((Bytes) o).hashCode && Arrays.equals(bytes, ((Bytes) o).bytes);
+            }
+
+            @Override
+            public int hashCode() {
+                return hashCode;
+            }
+        }
+
+        public static final Creator<SavedBackStack> CREATOR = new Creator<SavedBackStack>() {
             @Override
-            public BackStackEntry createFromParcel(Parcel in) {
-                return new BackStackEntry(in);
+            public SavedBackStack createFromParcel(Parcel in) {
+                return new SavedBackStack(in);
             }
 
             @Override
-            public BackStackEntry[] newArray(int size) {
-                return new BackStackEntry[size];
+            public SavedBackStack[] newArray(int size) {
+                return new SavedBackStack[size];
             }
         };
     }
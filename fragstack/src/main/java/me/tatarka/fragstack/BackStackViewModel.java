@@ -0,0 +1,89 @@
+package me.tatarka.fragstack;
+
+import android.arch.lifecycle.ViewModel;
+import android.arch.lifecycle.ViewModelStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Queue;
+
+/**
+ * State of the back-stack that's kept in memory across configuration changes.
+ */
+final class BackStackViewModel extends ViewModel {
+
+    /**
+     * The view model stores of back-stack entries, by entry id.
+     */
+    private final SparseArray<ViewModelStore> entryViewModelStores = new SparseArray<>();
+    /**
+     * The back-stack entries, kept across a configuration change so they don't have to be
+     * parcelled.
+     */
+    @Nullable
+    private ArrayList<BackStackTrackingFragment.BackStackEntry> entries;
+    /**
+     * Navigation requests posted while the state was saved. They are kept here so they still run
+     * once the back-stack is started again after a configuration change.
+     */
+    private final ArrayList<NavigationRequest> navigationRequests = new ArrayList<>();
+    /**
+     * The back-stack while it's started, to run requests that arrive after the previous instance
+     * was destroyed by a configuration change.
+     */
+    @Nullable
+    FragmentBackStack startedBackStack;
+
+    void putEntries(@NonNull ArrayList<BackStackTrackingFragment.BackStackEntry> entries) {
+        this.entries = entries;
+    }
+
+    @Nullable
+    ArrayList<BackStackTrackingFragment.BackStackEntry> takeEntries() {
+        ArrayList<BackStackTrackingFragment.BackStackEntry> entries = this.entries;
+        this.entries = null;
+        return entries;
+    }
+
+    void holdNavigationRequests(@NonNull Queue<NavigationRequest> requests) {
+        NavigationRequest request;
+        while ((request = requests.poll()) != null) {
+            navigationRequests.add(request);
+        }
+    }
+
+    @Nullable
+    ArrayList<NavigationRequest> takeNavigationRequests() {
+        if (navigationRequests.isEmpty()) {
+            return null;
+        }
+        ArrayList<NavigationRequest> requests = new ArrayList<>(navigationRequests);
+        navigationRequests.clear();
+        return requests;
+    }
+
+    void putViewModelStore(int entryId, @NonNull ViewModelStore store) {
+        entryViewModelStores.put(entryId, store);
+    }
+
+    @Nullable
+    ViewModelStore takeViewModelStore(int entryId) {
+        ViewModelStore store = entryViewModelStores.get(entryId);
+        if (store != null) {
+            entryViewModelStores.remove(entryId);
+        }
+        return store;
+    }
+
+    @Override
+    protected void onCleared() {
+        for (int i = 0; i < entryViewModelStores.size(); i++) {
+            entryViewModelStores.valueAt(i).clear();
+        }
+        entryViewModelStores.clear();
+        navigationRequests.clear();
+        startedBackStack = null;
+    }
+}
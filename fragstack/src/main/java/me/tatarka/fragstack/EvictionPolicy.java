@@ -0,0 +1,131 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Bounds the memory used by the back-stack by dropping old entries or stripping their saved state.
+ *
+ * @see FragmentBackStack#setEvictionPolicy(EvictionPolicy)
+ */
+public abstract class EvictionPolicy {
+
+    /**
+     * Keeps at most the given number of entries in the back-stack, dropping the oldest ones.
+     */
+    @NonNull
+    public static EvictionPolicy maxDepth(final int maxDepth) {
+        return new EvictionPolicy() {
+            @Override
+            public void evict(@NonNull List<Entry> entries, @NonNull Evictor evictor) {
+                if (entries.size() > maxDepth) {
+                    evictor.drop(entries.size() - maxDepth);
+                }
+            }
+        };
+    }
+
+    /**
+     * Strips the saved state of the oldest entries once the total saved state of the back-stack is
+     * larger than the given number of bytes. Stripped entries will be recreated from just their
+     * class name and args. Like {@link SavedStateUsage}, entries that have been spilled to disk
+     * aren't counted.
+     */
+    @NonNull
+    public static EvictionPolicy maxSavedStateSize(final int maxBytes) {
+        return new EvictionPolicy() {
+            @Override
+            public void evict(@NonNull List<Entry> entries, @NonNull Evictor evictor) {
+                int total = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    if (!entry.isSpilled()) {
+                        total += entry.getSavedStateSize();
+                    }
+                }
+                for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+                    Entry entry = entries.get(i);
+                    if (entry.isSpilled()) {
+                        continue;
+                    }
+                    int size = entry.getSavedStateSize();
+                    if (size > 0) {
+                        evictor.strip(i);
+                        total -= size;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Called whenever the back-stack has changed to evict any entries.
+     *
+     * @param entries the entries in the back-stack, oldest first.
+     * @param evictor used to drop, strip or spill entries.
+     */
+    public abstract void evict(@NonNull List<Entry> entries, @NonNull Evictor evictor);
+
+    /**
+     * A read-only view of an entry in the back-stack. Its depth is its index in the list of
+     * entries, the oldest being 0.
+     */
+    public interface Entry {
+        /**
+         * Returns the class name of the entry's fragment.
+         */
+        @NonNull
+        String getName();
+
+        /**
+         * Returns the tag of the entry's fragment, if any.
+         */
+        @Nullable
+        String getTag();
+
+        /**
+         * Returns the size in bytes of the entry's args once parcelled, or 0 if it doesn't have
+         * any.
+         */
+        int getArgsSize();
+
+        /**
+         * Returns the size in bytes of the entry's saved state once parcelled, or 0 if it doesn't
+         * have any.
+         */
+        int getSavedStateSize();
+
+        /**
+         * Returns if the entry's args and saved state have been written to disk and dropped from
+         * memory. They are read back when the entry is popped to.
+         */
+        boolean isSpilled();
+    }
+
+    /**
+     * Evicts entries from the back-stack.
+     */
+    public interface Evictor {
+        /**
+         * Drops the given number of oldest entries from the back-stack.
+         */
+        void drop(int count);
+
+        /**
+         * Strips the saved state of the entry at the given index, leaving only its class name, tag
+         * and args.
+         */
+        void strip(int index);
+
+        /**
+         * Writes the args and saved state of the entry at the given index to disk and drops them
+         * from memory. They are read back when the entry is popped to.
+         *
+         * @return true if the entry was spilled, false if it couldn't be, for example because the
+         * state has already been saved.
+         */
+        boolean spill(int index);
+    }
+}
@@ -2,6 +2,8 @@ package me.tatarka.fragstack;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.ViewModelStore;
 import android.os.Bundle;
 import android.support.annotation.IdRes;
 import android.support.annotation.NonNull;
@@ -9,9 +11,17 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v4.app.FragstackViewModelStores;
+import android.support.v4.util.SimpleArrayMap;
 import android.view.View;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.tatarka.fragstack.core.EntryList;
 
 /**
  * A better fragment back-stack™. The major difference from the built-in fragment back-stack is that
@@ -24,22 +34,72 @@ import java.util.ArrayList;
  * <pre>{@code
  * backStack.pop().push(fragmentD);
  * }</pre>
+ * All operations made in the same main-loop turn are merged and committed as a single transaction
+ * at the end of that turn, so fragments that are pushed and then popped again, or popped past, are
+ * never created.
  */
 @SuppressLint("CommitTransaction")
 public final class FragmentBackStack {
 
     /**
-     * Obtain an instance of the back-stack. This class doesn't hold onto any state itself so it's
-     * safe to call it multiple times on the same {@link FragmentManager}.
+     * Instances are cached per {@link FragmentManager} so repeated calls don't allocate or look up
+     * the tracking fragment again. The tracking fragment holds onto its instance, so it lives as long
+     * as the back-stack does.
+     */
+    private static final WeakHashMap<FragmentManager, WeakReference<FragmentBackStack>> instances = new WeakHashMap<>();
+
+    /**
+     * Obtain an instance of the back-stack. There is one instance per {@link FragmentManager}, so
+     * calling this multiple times on the same one returns the same instance. It caches the tracking
+     * fragment and holds navigation requests posted with {@link #post(NavigationRequest)} until they
+     * run, the back-stack itself is kept in the tracking fragment. This must be called on the main
+     * thread.
      */
     @NonNull
     public static FragmentBackStack of(FragmentManager fm) {
-        return new FragmentBackStack(fm);
+        WeakReference<FragmentBackStack> ref = instances.get(fm);
+        FragmentBackStack backStack = ref != null ? ref.get() : null;
+        if (backStack == null) {
+            backStack = new FragmentBackStack(fm);
+            instances.put(fm, new WeakReference<>(backStack));
+        }
+        return backStack;
+    }
+
+    static void remove(FragmentManager fm) {
+        instances.remove(fm);
+    }
+
+    private static final SimpleArrayMap<String, FragmentFactory> fragmentFactories = new SimpleArrayMap<>();
+
+    /**
+     * Registers a factory to create the given fragment class when it's popped back to or restored,
+     * instead of using reflection. This should be called before any back-stack is used, for
+     * example in your Application's onCreate().
+     */
+    public static void registerFragmentFactory(@NonNull Class<? extends Fragment> fragmentClass, @NonNull FragmentFactory factory) {
+        fragmentFactories.put(fragmentClass.getName(), factory);
+    }
+
+    /**
+     * Removes the factory registered for the given fragment class, if any, so it's created with
+     * reflection again.
+     */
+    public static void unregisterFragmentFactory(@NonNull Class<? extends Fragment> fragmentClass) {
+        fragmentFactories.remove(fragmentClass.getName());
     }
 
     private final FragmentManager fm;
     @Nullable
     private BackStackTrackingFragment tf;
+    private final ConcurrentLinkedQueue<NavigationRequest> navigationRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean navigationRequestsScheduled = new AtomicBoolean();
+    private final Runnable runNavigationRequests = new Runnable() {
+        @Override
+        public void run() {
+            runNavigationRequests();
+        }
+    };
 
     FragmentBackStack(FragmentManager fm) {
         this.fm = fm;
@@ -62,20 +122,149 @@ public final class FragmentBackStack {
      */
     @NonNull
     public FragmentBackStack startWith(@IdRes int containerId, @NonNull Fragment fragment, @Nullable String tag) {
-        fm.executePendingTransactions();
         if (fm.findFragmentById(containerId) == null) {
             BackStackTrackingFragment tf = obtain();
             tf.setContainerId(containerId);
             tf.currentFragment = fragment;
-            fm.beginTransaction()
-                    .add(containerId, fragment, tag)
-                    .setReorderingAllowed(true)
-                    .setPrimaryNavigationFragment(fragment)
-                    .commit();
+            tf.currentTag = tag;
+            tf.currentEntry = null;
+            tf.scheduleExecutePending();
         }
         return this;
     }
 
+    /**
+     * Saves the args and state of fragments in the back-stack to disk instead of in the saved
+     * instance state, so the saved instance state stays the same size no matter how deep the stack
+     * is. Use this if you are running into {@link android.os.TransactionTooLargeException} with
+     * deep stacks. Like {@link #startWith(int, Fragment)}, you should call this every time in your
+     * Activity's onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setSaveStateToDisk(boolean saveStateToDisk) {
+        obtain().saveStateToDisk = saveStateToDisk;
+        return this;
+    }
+
+    /**
+     * Sets a policy to bound the memory used by the back-stack, by dropping old entries or
+     * stripping their saved state. Like {@link #startWith(int, Fragment)}, you should call this
+     * every time in your Activity's onCreate().
+     *
+     * @see EvictionPolicy#maxDepth(int)
+     * @see EvictionPolicy#maxSavedStateSize(int)
+     */
+    @NonNull
+    public FragmentBackStack setEvictionPolicy(@Nullable EvictionPolicy evictionPolicy) {
+        obtain().evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    /**
+     * Sets a budget for the total size of the args and saved state held by the back-stack, and
+     * what to do when it's exceeded. This keeps the activity's saved state clear of a
+     * {@link android.os.TransactionTooLargeException}. Like {@link #startWith(int, Fragment)}, you
+     * should call this every time in your Activity's onCreate().
+     *
+     * @see SavedStateBudget#warn(int)
+     * @see SavedStateBudget#strip(int)
+     * @see SavedStateBudget#spill(int)
+     * @see SavedStateBudget#drop(int)
+     * @see #getSavedStateUsage()
+     */
+    @NonNull
+    public FragmentBackStack setSavedStateBudget(@Nullable SavedStateBudget savedStateBudget) {
+        BackStackTrackingFragment tf = obtain();
+        tf.savedStateBudget = savedStateBudget;
+        tf.enforceSavedStateBudget();
+        return this;
+    }
+
+    /**
+     * Drops the view hierarchy state of entries more than the given number of levels below the
+     * current fragment, keeping only the state the fragments save themselves. The view state is
+     * usually the bulk of the saved state, so this bounds its size for long sessions while recent
+     * entries still restore exactly. For example, with 2 only the two entries below the current
+     * fragment keep their view state. Defaults to keeping it for all entries. Like
+     * {@link #startWith(int, Fragment)}, you should call this every time in your Activity's
+     * onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setMaxViewStateDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative");
+        }
+        BackStackTrackingFragment tf = obtain();
+        tf.maxViewStateDepth = depth;
+        tf.stripViewStates();
+        return this;
+    }
+
+    /**
+     * Keeps the fragments of the given number of most recent back-stack entries alive in a detached
+     * state instead of destroying them, so popping back to them only has to recreate their views.
+     * Their state is saved and they are destroyed once they are no longer one of the most recent
+     * or when memory is running low. Defaults to 0. Like {@link #startWith(int, Fragment)}, you
+     * should call this every time in your Activity's onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setRetainedFragmentCount(int count) {
+        obtain().retainedFragmentCount = count;
+        return this;
+    }
+
+    /**
+     * Keeps the view models of fragments in the back-stack alive while they are destroyed, so
+     * popping back to a fragment gives it the same view models instead of having to load its data
+     * again. They are cleared once the entry is removed from the back-stack. Defaults to false. Like
+     * {@link #startWith(int, Fragment)}, you should call this every time in your Activity's
+     * onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setRetainViewModels(boolean retain) {
+        obtain().retainViewModels = retain;
+        return this;
+    }
+
+    /**
+     * Creates the fragment that would be popped back to when the main thread is idle after each
+     * operation, so that a pop, for example from {@link Activity#onBackPressed()}, only has to add
+     * it. The preloaded fragment is discarded if the back-stack changes first. Like
+     * {@link #startWith(int, Fragment)}, you should call this every time in your Activity's
+     * onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setPreloadPopTarget(boolean preload) {
+        BackStackTrackingFragment tf = obtain();
+        tf.preloadPopTarget = preload;
+        tf.schedulePreload();
+        return this;
+    }
+
+    /**
+     * Loads and initializes the classes of the fragments in the back-stack on a background thread
+     * when it's restored after process death, so the first pop after a restart doesn't pay for it
+     * on the main thread. As the back-stack is restored before you can call this, the setting is
+     * kept in the saved instance state and takes effect from the next restore. Your fragments'
+     * static initializers must be safe to run off the main thread. Defaults to false.
+     */
+    @NonNull
+    public FragmentBackStack setPreloadClasses(boolean preload) {
+        obtain().preloadClasses = preload;
+        return this;
+    }
+
+    /**
+     * Sets a listener to be notified of each navigation with timings and state sizes, for example
+     * to report them to a performance dashboard. Like {@link #startWith(int, Fragment)}, you
+     * should call this every time in your Activity's onCreate().
+     */
+    @NonNull
+    public FragmentBackStack setNavigationListener(@Nullable NavigationListener listener) {
+        obtain().navigationListener = listener;
+        return this;
+    }
+
     /**
      * Pushes the given fragment onto the stack, replacing the current one.
      */
@@ -108,37 +297,30 @@ public final class FragmentBackStack {
     @NonNull
     public FragmentBackStack push(@NonNull Fragment fragment, @Nullable String tag, @Nullable AnimationOptions animationOptions) {
         BackStackTrackingFragment tf = obtain();
-        final Fragment currentFragment = getCurrentFragment(tf);
-        if (currentFragment != null) {
-            if (tf.backStack == null) {
-                tf.backStack = new ArrayList<>();
-            }
-            final BackStackTrackingFragment.BackStackEntry entry = new BackStackTrackingFragment.BackStackEntry(currentFragment, animationOptions);
+        BackStackTrackingFragment.BackStackEntry entry = tf.currentEntry;
+        if (entry != null) {
+            // The current entry was popped but never instantiated, so it can go back on the stack as-is.
+            tf.currentEntry = null;
+            entry.setAnimationOptions(animationOptions);
             tf.backStack.add(entry);
-            if (isCurrentFragmentInFragmentManager(tf)) {
-                // Detach, save state, then remove. This is to ensure onSaveInstanceState is called between onStop() and onDestroy().
-                applyAnimations(fm.beginTransaction(), animationOptions)
-                        .detach(currentFragment)
-                        .setReorderingAllowed(true)
-                        .runOnCommit(new Runnable() {
-                            @Override
-                            public void run() {
-                                entry.savedState = fm.saveFragmentInstanceState(currentFragment);
-                                fm.beginTransaction()
-                                        .remove(currentFragment)
-                                        .setReorderingAllowed(true)
-                                        .commit();
-                            }
-                        })
-                        .commit();
+        } else {
+            Fragment currentFragment = getCurrentFragment(tf);
+            if (currentFragment != null) {
+                entry = new BackStackTrackingFragment.BackStackEntry(currentFragment, tf.currentTag, animationOptions);
+                tf.backStack.add(entry);
+                if (currentFragment == getCommittedFragment(tf)) {
+                    // Its state will be saved when the pending operations are executed.
+                    tf.savingEntry = entry;
+                }
             }
         }
-        FragmentTransaction transaction = applyAnimations(fm.beginTransaction(), animationOptions);
-        transaction.replace(tf.getContainerId(), fragment, tag)
-                .setReorderingAllowed(true)
-                .setPrimaryNavigationFragment(fragment);
-        transaction.commit();
         tf.currentFragment = fragment;
+        tf.currentTag = tag;
+        tf.pendingAnimationOptions = animationOptions;
+        tf.pendingPopEntry = null;
+        tf.pendingPopAnimationOptions = null;
+        tf.recordOperation(NavigationEvent.PUSH);
+        tf.scheduleExecutePending();
         return this;
     }
 
@@ -186,13 +368,17 @@ public final class FragmentBackStack {
     }
 
     private boolean pop(@Nullable PopAnimationOptions animationOptions, boolean immediate) {
-        Fragment primaryNavFragment = fm.getPrimaryNavigationFragment();
-        if (primaryNavFragment != null && FragmentBackStack.of(primaryNavFragment.getChildFragmentManager()).pop(null, immediate)) {
-            return true;
-        }
         BackStackTrackingFragment tf = obtain();
-        if (tf.backStack != null && tf.backStack.size() > 0) {
-            BackStackTrackingFragment.BackStackEntry lastEntry = tf.backStack.remove(tf.backStack.size() - 1);
+        if (isCommittedFragmentOnTop(tf)) {
+            // Only delegate to a nested back-stack if it's for the fragment that's actually showing.
+            Fragment primaryNavFragment = fm.getPrimaryNavigationFragment();
+            if (primaryNavFragment != null && FragmentBackStack.of(primaryNavFragment.getChildFragmentManager()).pop(null, immediate)) {
+                return true;
+            }
+        }
+        if (!tf.backStack.isEmpty()) {
+            BackStackTrackingFragment.BackStackEntry lastEntry = tf.backStack.removeLast();
+            tf.recordOperation(NavigationEvent.POP);
             performPop(tf, lastEntry, animationOptions, immediate);
             return true;
         }
@@ -255,64 +441,455 @@ public final class FragmentBackStack {
 
     private boolean pop(@NonNull String tag, boolean inclusive, boolean immediate) {
         BackStackTrackingFragment tf = obtain();
-        if (tf.backStack != null && tf.backStack.size() > 0) {
-            BackStackTrackingFragment.BackStackEntry lastEntry = null;
-            int index = -1;
-            for (int i = tf.backStack.size() - 1; i >= 0; i--) {
-                index = i;
-                BackStackTrackingFragment.BackStackEntry entry = tf.backStack.get(i);
-                if (tag.equals(entry.tag)) {
-                    lastEntry = entry;
-                    break;
+        int index = tf.backStack.popIndex(tag, inclusive);
+        if (index == -1) {
+            return false;
+        }
+        BackStackTrackingFragment.BackStackEntry lastEntry = tf.backStack.get(index);
+        for (int i = tf.backStack.size() - 1; i > index; i--) {
+            tf.discard(tf.backStack.get(i));
+        }
+        tf.backStack.truncate(index);
+        tf.recordOperation(inclusive ? NavigationEvent.POP_INCLUSIVE : NavigationEvent.POP_EXCLUSIVE);
+        performPop(tf, lastEntry, null, immediate);
+        return true;
+    }
+
+    /**
+     * Replaces the whole back-stack with the given fragments, the last one being the top. Entries
+     * at the bottom of the current back-stack that match are kept along with their state, the rest
+     * are replaced by entries that are only instantiated once they are popped back to. The top
+     * fragment is kept if it matches, otherwise only it is created. This is useful for deep-links,
+     * where you want to show a screen along with the screens the user would have navigated through
+     * to get there. This must be called after {@link #startWith(int, Fragment)}.
+     *
+     * @throws IllegalArgumentException if the list is empty.
+     */
+    @NonNull
+    public FragmentBackStack setStack(@NonNull List<FragmentDescriptor> stack) {
+        if (stack.isEmpty()) {
+            throw new IllegalArgumentException("stack must not be empty");
+        }
+        final BackStackTrackingFragment tf = obtain();
+        int top = stack.size() - 1;
+        int common = tf.backStack.matchingPrefix(stack.subList(0, top), new EntryList.Matcher<BackStackTrackingFragment.BackStackEntry, FragmentDescriptor>() {
+            @Override
+            public boolean matches(BackStackTrackingFragment.BackStackEntry entry, FragmentDescriptor descriptor) {
+                return tf.loadEntry(entry) && descriptor.matches(entry.name, entry.tag, entry.args);
+            }
+        });
+        for (int i = tf.backStack.size() - 1; i >= common; i--) {
+            tf.discard(tf.backStack.get(i));
+        }
+        tf.backStack.truncate(common);
+        for (int i = common; i < top; i++) {
+            tf.backStack.add(stack.get(i).toEntry());
+        }
+        FragmentDescriptor topDescriptor = stack.get(top);
+        if (!isCurrent(tf, topDescriptor)) {
+            if (tf.currentEntry != null) {
+                tf.discard(tf.currentEntry);
+            }
+            BackStackTrackingFragment.BackStackEntry entry = topDescriptor.toEntry();
+            tf.currentFragment = null;
+            tf.currentEntry = entry;
+            tf.currentTag = entry.tag;
+            tf.pendingAnimationOptions = null;
+            tf.pendingPopEntry = null;
+            tf.pendingPopAnimationOptions = null;
+        }
+        tf.recordOperation(NavigationEvent.SET_STACK);
+        tf.scheduleExecutePending();
+        return this;
+    }
+
+    /**
+     * Clears the back-stack and shows the given fragment, so that it's the only one on the stack.
+     */
+    @NonNull
+    public FragmentBackStack resetTo(@NonNull Fragment fragment) {
+        return resetTo(fragment, null);
+    }
+
+    /**
+     * Clears the back-stack and shows the given fragment with the given tag, so that it's the only
+     * one on the stack.
+     */
+    @NonNull
+    public FragmentBackStack resetTo(@NonNull Fragment fragment, @Nullable String tag) {
+        BackStackTrackingFragment tf = obtain();
+        for (int i = tf.backStack.size() - 1; i >= 0; i--) {
+            tf.discard(tf.backStack.get(i));
+        }
+        tf.backStack.truncate(0);
+        if (tf.currentEntry != null) {
+            tf.discard(tf.currentEntry);
+            tf.currentEntry = null;
+        }
+        tf.currentFragment = fragment;
+        tf.currentTag = tag;
+        tf.pendingAnimationOptions = null;
+        tf.pendingPopEntry = null;
+        tf.pendingPopAnimationOptions = null;
+        tf.recordOperation(NavigationEvent.SET_STACK);
+        tf.scheduleExecutePending();
+        return this;
+    }
+
+    /**
+     * Inserts an entry into the back-stack below the current fragment without creating its
+     * fragment. The fragment is only instantiated if the entry is popped back to.
+     *
+     * @param index the position to insert at, from 0 for the bottom of the back-stack to
+     *              {@link #getDepth()} for directly below the current fragment.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    @NonNull
+    public FragmentBackStack insert(int index, @NonNull FragmentDescriptor descriptor) {
+        BackStackTrackingFragment tf = obtain();
+        int depth = tf.backStack.size();
+        if (index < 0 || index > depth) {
+            throw new IndexOutOfBoundsException("index: " + index + ", depth: " + depth);
+        }
+        tf.backStack.add(index, descriptor.toEntry());
+        if (index == depth) {
+            // The pop target changed.
+            tf.schedulePreload();
+        }
+        tf.evict();
+        return this;
+    }
+
+    /**
+     * Returns the number of entries in the back-stack below the current fragment, including any
+     * pending operations.
+     */
+    public int getDepth() {
+        return obtain().backStack.size();
+    }
+
+    /**
+     * Returns the parcelled size of the args and saved state held by the back-stack, broken down
+     * by fragment class. Use this to find which fragments are inflating the saved state, or to
+     * report it before it grows too large.
+     */
+    @NonNull
+    public SavedStateUsage getSavedStateUsage() {
+        return obtain().accounting.getUsage();
+    }
+
+    private boolean isCurrent(BackStackTrackingFragment tf, FragmentDescriptor descriptor) {
+        BackStackTrackingFragment.BackStackEntry entry = tf.currentEntry;
+        if (entry != null) {
+            return tf.loadEntry(entry) && descriptor.matches(entry.name, entry.tag, entry.args);
+        }
+        Fragment currentFragment = getCurrentFragment(tf);
+        return currentFragment != null && descriptor.matches(currentFragment.getClass().getName(), tf.currentTag, currentFragment.getArguments());
+    }
+
+    /**
+     * Posts a navigation to run on the main thread. Unlike the other methods, this may be called
+     * from any thread. Requests are run in the order they are posted. If the state has already been
+     * saved they are held until the back-stack is started again instead of throwing, including
+     * across a configuration change. If the {@link FragmentManager} is destroyed for good they are
+     * dropped.
+     */
+    public void post(@NonNull NavigationRequest request) {
+        navigationRequests.offer(request);
+        scheduleNavigationRequests();
+    }
+
+    /**
+     * Runs the posted navigation requests on the next main-loop turn, outside of any fragment
+     * manager transaction so they are free to execute their own.
+     */
+    void scheduleNavigationRequests() {
+        if (navigationRequestsScheduled.compareAndSet(false, true)) {
+            BackStackTrackingFragment.MAIN_HANDLER.post(runNavigationRequests);
+        }
+    }
+
+    void runNavigationRequests() {
+        navigationRequestsScheduled.set(false);
+        BackStackTrackingFragment tf = this.tf;
+        if (fm.isDestroyed()) {
+            if (tf == null || !tf.handOffNavigationRequests(navigationRequests)) {
+                navigationRequests.clear();
+            }
+            return;
+        }
+        if (tf == null) {
+            tf = (BackStackTrackingFragment) fm.findFragmentByTag(BackStackTrackingFragment.TAG);
+            if (tf != null) {
+                this.tf = tf;
+                tf.instance = this;
+            }
+        }
+        if (fm.isStateSaved()) {
+            // The tracking fragment will run them in onStart(), even after a configuration change.
+            // It's created if there isn't one yet, which also keeps this instance and the requests
+            // it holds alive until then.
+            obtain().holdNavigationRequests(navigationRequests);
+            return;
+        }
+        if (tf != null) {
+            List<NavigationRequest> held = tf.takeNavigationRequests();
+            if (held != null) {
+                for (int i = 0; i < held.size(); i++) {
+                    held.get(i).navigate(this);
                 }
             }
-            if (lastEntry != null) {
-                for (int i = tf.backStack.size() - 1; i >= index; i--) {
-                    tf.backStack.remove(i);
+        }
+        NavigationRequest request;
+        while ((request = navigationRequests.poll()) != null) {
+            request.navigate(this);
+        }
+    }
+
+    /**
+     * Immediately executes any pending push and pop operations. Normally these are merged together
+     * and committed as a single transaction at the end of the current main-loop turn.
+     *
+     * @return true if there were any pending operations to execute.
+     */
+    public boolean executePendingTransactions() {
+        BackStackTrackingFragment tf = obtain();
+        boolean pending = !isCommittedFragmentOnTop(tf);
+        executePending(tf, true);
+        return pending;
+    }
+
+    private void performPop(BackStackTrackingFragment tf, BackStackTrackingFragment.BackStackEntry entry, @Nullable PopAnimationOptions animationOptions, boolean immediate) {
+        if (tf.currentEntry != null) {
+            // The previous pop was never instantiated, it can just be dropped.
+            tf.discard(tf.currentEntry);
+        }
+        tf.currentFragment = null;
+        tf.currentEntry = entry;
+        tf.currentTag = entry.tag;
+        tf.pendingAnimationOptions = null;
+        tf.pendingPopEntry = entry;
+        tf.pendingPopAnimationOptions = animationOptions;
+        if (immediate) {
+            executePending(tf, true);
+        } else {
+            tf.scheduleExecutePending();
+        }
+    }
+
+    /**
+     * Commits the net result of all pending push and pop operations as a single replace of the
+     * committed fragment.
+     *
+     * @param now if true, the transactions are committed with {@link FragmentTransaction#commitNow()}.
+     */
+    void executePending(BackStackTrackingFragment tf, boolean now) {
+        tf.cancelExecutePending();
+        if (fm.isDestroyed()) {
+            return;
+        }
+        if (fm.isStateSaved()) {
+            // It has to be added to be started again.
+            addTrackingFragmentNow(tf);
+            if (tf.currentFragment != null || tf.currentEntry != null) {
+                tf.executePendingOnStart();
+            }
+            return;
+        }
+        if (tf.currentFragment == null && tf.currentEntry == null) {
+            if (tf.pendingAdd) {
+                tf.pendingAdd = false;
+                commit(fm.beginTransaction().add(tf, BackStackTrackingFragment.TAG), now);
+            }
+            return;
+        }
+        Fragment committedFragment = getCommittedFragment(tf);
+        NavigationEvent event = tf.pendingEvent;
+        tf.pendingEvent = null;
+        boolean reattach = false;
+        BackStackTrackingFragment.BackStackEntry entry = tf.currentEntry;
+        if (entry != null) {
+            tf.currentEntry = null;
+            entry = tf.loadPopTarget(entry);
+        }
+        if (entry != null) {
+            if (entry == tf.savingEntry) {
+                // Popped back to the committed fragment, nothing to restore.
+                tf.currentFragment = committedFragment;
+            } else if (entry.retainedFragment != null) {
+                tf.currentFragment = tf.takeRetainedFragment(entry);
+                reattach = true;
+            } else {
+                Fragment fragment = tf.takePreloadedFragment(entry);
+                if (fragment == null) {
+                    // Instantiating needs a context.
+                    addTrackingFragmentNow(tf);
+                    long startTime = System.nanoTime();
+                    fragment = instantiate(tf, entry);
+                    if (event != null) {
+                        event.instantiateTimeNanos = System.nanoTime() - startTime;
+                    }
                 }
-                // If we are inclusive, pop one more.
-                if (inclusive && tf.backStack.size() > 0) {
-                    lastEntry = tf.backStack.remove(tf.backStack.size() - 1);
+                if (tf.retainViewModels) {
+                    ViewModelStore viewModelStore = tf.takeViewModelStore(entry);
+                    if (viewModelStore != null) {
+                        FragstackViewModelStores.put(fragment, viewModelStore);
+                    }
                 }
-                performPop(tf, lastEntry, null, immediate);
-                return true;
+                tf.currentFragment = fragment;
             }
+            tf.discard(entry);
+        } else if (tf.currentFragment == null) {
+            // None of the entries could be read back, stay on the committed fragment.
+            tf.currentFragment = committedFragment;
+            tf.currentTag = committedFragment != null ? committedFragment.getTag() : null;
         }
-        return false;
+        Fragment fragment = tf.currentFragment;
+        AnimationOptions animationOptions = tf.pendingAnimationOptions;
+        BackStackTrackingFragment.BackStackEntry popEntry = tf.pendingPopEntry;
+        PopAnimationOptions popAnimationOptions = tf.pendingPopAnimationOptions;
+        tf.pendingAnimationOptions = null;
+        tf.pendingPopEntry = null;
+        tf.pendingPopAnimationOptions = null;
+        if (fragment == null || fragment == committedFragment) {
+            if (tf.pendingAdd) {
+                tf.pendingAdd = false;
+                commit(fm.beginTransaction().add(tf, BackStackTrackingFragment.TAG), now);
+            }
+            return;
+        }
+        if (event != null) {
+            tf.beginNavigation(event, fragment);
+        }
+        BackStackTrackingFragment.BackStackEntry savingEntry = tf.savingEntry;
+        tf.savingEntry = null;
+        boolean retain = savingEntry != null && committedFragment != null && tf.retainedFragmentCount > 0;
+        if (savingEntry != null && committedFragment != null && !retain) {
+            if (committedFragment.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+                // Save state when it's stopped by the replace below, removing it in the same transaction.
+                tf.saveStateOnStop(committedFragment, savingEntry);
+            } else {
+                // It won't be stopped so it's safe to save state now.
+                tf.setSavedState(fm, committedFragment, savingEntry);
+            }
+        }
+        FragmentTransaction transaction = applyAnimations(fm.beginTransaction(), popEntry, animationOptions, popAnimationOptions);
+        if (tf.pendingAdd) {
+            tf.pendingAdd = false;
+            transaction.add(tf, BackStackTrackingFragment.TAG);
+        }
+        if (retain) {
+            // Keep the fragment alive, it will only be saved and removed once it's no longer one of the most recent.
+            tf.retainFragment(savingEntry, committedFragment);
+            transaction.detach(committedFragment)
+                    .add(tf.getContainerId(), fragment, tf.currentTag);
+        } else if (reattach) {
+            if (committedFragment != null) {
+                transaction.remove(committedFragment);
+            }
+            transaction.attach(fragment);
+        } else {
+            transaction.replace(tf.getContainerId(), fragment, tf.currentTag);
+        }
+        transaction.setReorderingAllowed(true)
+                .setPrimaryNavigationFragment(fragment);
+        commit(transaction, now);
+        tf.committedFragment = fragment;
+        tf.trimRetainedFragments(tf.retainedFragmentCount);
+        tf.evict();
+        tf.schedulePreload();
     }
 
-    private void performPop(BackStackTrackingFragment tf, BackStackTrackingFragment.BackStackEntry entry, @Nullable PopAnimationOptions animationOptions, boolean immediate) {
-        Fragment fragment = Fragment.instantiate(tf.getContext(), entry.name, entry.args);
+    /**
+     * Creates the fragment for the given entry, which must already be loaded.
+     */
+    static Fragment instantiate(BackStackTrackingFragment tf, BackStackTrackingFragment.BackStackEntry entry) {
+        Fragment fragment;
+        FragmentFactory factory = fragmentFactories.get(entry.name);
+        if (factory != null) {
+            fragment = factory.newInstance();
+            if (entry.args != null) {
+                entry.args.setClassLoader(fragment.getClass().getClassLoader());
+                fragment.setArguments(entry.args);
+            }
+        } else {
+            fragment = Fragment.instantiate(tf.getContext(), entry.name, entry.args);
+        }
         fragment.setInitialSavedState(entry.savedState);
-        FragmentTransaction transaction = applyPopAnimations(fm.beginTransaction(), entry, animationOptions);
-        transaction.replace(tf.getContainerId(), fragment, entry.tag)
-                .setReorderingAllowed(true);
-        if (immediate) {
+        return fragment;
+    }
+
+    /**
+     * Adds the tracking fragment on its own, for when it's needed before the next transaction.
+     */
+    private void addTrackingFragmentNow(BackStackTrackingFragment tf) {
+        if (tf.pendingAdd) {
+            tf.pendingAdd = false;
+            // It doesn't have any state yet, so there's nothing to lose.
+            fm.beginTransaction()
+                    .add(tf, BackStackTrackingFragment.TAG)
+                    .commitNowAllowingStateLoss();
+        }
+    }
+
+    private static void commit(FragmentTransaction transaction, boolean now) {
+        if (now) {
             transaction.commitNow();
         } else {
             transaction.commit();
         }
     }
 
-    private boolean isCurrentFragmentInFragmentManager(BackStackTrackingFragment tf) {
-        return fm.findFragmentById(tf.getContainerId()) == getCurrentFragment(tf);
+    /**
+     * Returns true if the committed fragment will still be on top once pending operations are
+     * executed.
+     */
+    private boolean isCommittedFragmentOnTop(BackStackTrackingFragment tf) {
+        if (tf.currentEntry != null) {
+            return tf.currentEntry == tf.savingEntry;
+        }
+        if (tf.currentFragment == null) {
+            // Nothing has been pushed or popped since the state was restored.
+            return true;
+        }
+        return tf.currentFragment == getCommittedFragment(tf);
     }
 
     private BackStackTrackingFragment obtain() {
         if (tf == null) {
             tf = BackStackTrackingFragment.obtain(fm);
+            tf.instance = this;
         }
         return tf;
     }
 
     @Nullable
     private Fragment getCurrentFragment(BackStackTrackingFragment tf) {
-        if (tf.currentFragment == null) {
+        if (tf.currentFragment == null && tf.currentEntry == null) {
             tf.currentFragment = fm.findFragmentById(tf.getContainerId());
+            if (tf.currentFragment != null) {
+                tf.currentTag = tf.currentFragment.getTag();
+            }
         }
         return tf.currentFragment;
     }
 
+    @Nullable
+    private Fragment getCommittedFragment(BackStackTrackingFragment tf) {
+        if (tf.committedFragment == null) {
+            tf.committedFragment = fm.findFragmentById(tf.getContainerId());
+        }
+        return tf.committedFragment;
+    }
+
+    private FragmentTransaction applyAnimations(FragmentTransaction transaction, @Nullable BackStackTrackingFragment.BackStackEntry popEntry, @Nullable AnimationOptions animationOptions, @Nullable PopAnimationOptions popAnimationOptions) {
+        if (popEntry != null) {
+            return applyPopAnimations(transaction, popEntry, popAnimationOptions);
+        } else {
+            return applyAnimations(transaction, animationOptions);
+        }
+    }
+
     private FragmentTransaction applyAnimations(FragmentTransaction transaction, @Nullable AnimationOptions options) {
         if (options != null) {
             transaction.setCustomAnimations(options.enter, options.exit);
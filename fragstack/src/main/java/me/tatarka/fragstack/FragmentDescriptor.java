@@ -0,0 +1,74 @@
+package me.tatarka.fragstack;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+import android.support.v4.util.ObjectsCompat;
+
+/**
+ * Describes a fragment on the back-stack without creating it, so it's only instantiated once it's
+ * shown.
+ *
+ * @see FragmentBackStack#setStack(java.util.List)
+ */
+public final class FragmentDescriptor {
+    final String name;
+    @Nullable
+    final Bundle args;
+    @Nullable
+    final String tag;
+
+    public FragmentDescriptor(@NonNull Class<? extends Fragment> fragmentClass) {
+        this(fragmentClass, null, null);
+    }
+
+    public FragmentDescriptor(@NonNull Class<? extends Fragment> fragmentClass, @Nullable Bundle args) {
+        this(fragmentClass, args, null);
+    }
+
+    public FragmentDescriptor(@NonNull Class<? extends Fragment> fragmentClass, @Nullable Bundle args, @Nullable String tag) {
+        this.name = fragmentClass.getName();
+        this.args = args;
+        this.tag = tag;
+    }
+
+    /**
+     * Returns a new entry that will instantiate the fragment when it's popped back to.
+     */
+    BackStackTrackingFragment.BackStackEntry toEntry() {
+        return new BackStackTrackingFragment.BackStackEntry(name, tag, args != null ? new Bundle(args) : null);
+    }
+
+    boolean matches(String name, @Nullable String tag, @Nullable Bundle args) {
+        return this.name.equals(name) && ObjectsCompat.equals(this.tag, tag) && argsEqual(this.args, args);
+    }
+
+    /**
+     * Shallow compares the args, recursing into nested bundles. Fragments with empty and missing
+     * args are treated the same.
+     */
+    static boolean argsEqual(@Nullable Bundle a, @Nullable Bundle b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return (a == null || a.isEmpty()) && (b == null || b.isEmpty());
+        }
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            Object aValue = a.get(key);
+            Object bValue = b.get(key);
+            if (aValue instanceof Bundle && bValue instanceof Bundle) {
+                if (!argsEqual((Bundle) aValue, (Bundle) bValue)) {
+                    return false;
+                }
+            } else if (!ObjectsCompat.equals(aValue, bValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+import android.support.v4.app.Fragment;
+
+/**
+ * Creates a fragment directly instead of through reflection when it's restored from the back-stack.
+ *
+ * @see FragmentBackStack#registerFragmentFactory(Class, FragmentFactory)
+ */
+public interface FragmentFactory {
+    /**
+     * Returns a new instance of the fragment. Its arguments and saved state will be set after it
+     * is created.
+     */
+    @NonNull
+    Fragment newInstance();
+}
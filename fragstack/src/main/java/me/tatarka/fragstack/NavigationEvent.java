@@ -0,0 +1,113 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Describes a navigation committed by the back-stack along with timings for each phase.
+ *
+ * @see NavigationListener
+ */
+public final class NavigationEvent {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PUSH, POP, POP_INCLUSIVE, POP_EXCLUSIVE, SET_STACK})
+    public @interface Operation {
+    }
+
+    public static final int PUSH = 0;
+    public static final int POP = 1;
+    public static final int POP_INCLUSIVE = 2;
+    public static final int POP_EXCLUSIVE = 3;
+    public static final int SET_STACK = 4;
+
+    @Operation
+    int operation;
+    int operationCount;
+    int depth;
+    long instantiateTimeNanos = -1;
+    long commitToResumedNanos = -1;
+    int savedStateSize = -1;
+    int argsSize = -1;
+    long commitTimeNanos;
+    /**
+     * The fragment that was committed, used to find when it's resumed.
+     */
+    @Nullable
+    Fragment fragment;
+
+    NavigationEvent() {
+    }
+
+    /**
+     * Returns the last operation of the navigation. Operations made in the same main-loop turn
+     * are merged into a single navigation.
+     */
+    @Operation
+    public int getOperation() {
+        return operation;
+    }
+
+    /**
+     * Returns the number of operations that were merged into this navigation.
+     */
+    public int getOperationCount() {
+        return operationCount;
+    }
+
+    /**
+     * Returns the depth of the back-stack after the navigation.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the time spent instantiating the fragment that was popped back to, or -1 if no
+     * fragment was instantiated.
+     */
+    public long getInstantiateTimeNanos() {
+        return instantiateTimeNanos;
+    }
+
+    /**
+     * Returns the time from committing the navigation to the new fragment being resumed, or -1 if
+     * it was replaced before it was resumed.
+     */
+    public long getCommitToResumedNanos() {
+        return commitToResumedNanos;
+    }
+
+    /**
+     * Returns the size in bytes of the saved state captured for the fragment that was pushed onto
+     * the back-stack, or -1 if no state was captured.
+     */
+    public int getSavedStateSize() {
+        return savedStateSize;
+    }
+
+    /**
+     * Returns the size in bytes of the args of the fragment that was pushed onto the back-stack, or
+     * -1 if no state was captured.
+     */
+    public int getArgsSize() {
+        return argsSize;
+    }
+
+    @Override
+    public String toString() {
+        return "NavigationEvent{" +
+                "operation=" + operation +
+                ", operationCount=" + operationCount +
+                ", depth=" + depth +
+                ", instantiateTimeNanos=" + instantiateTimeNanos +
+                ", commitToResumedNanos=" + commitToResumedNanos +
+                ", savedStateSize=" + savedStateSize +
+                ", argsSize=" + argsSize +
+                '}';
+    }
+}
@@ -0,0 +1,36 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Listens to navigation on the back-stack, for example to report timings and state sizes.
+ *
+ * @see FragmentBackStack#setNavigationListener(NavigationListener)
+ */
+public abstract class NavigationListener {
+
+    /**
+     * Called once a navigation has completed and the new fragment is resumed, or when it was
+     * replaced by another navigation first.
+     */
+    public void onNavigation(@NonNull NavigationEvent event) {
+    }
+
+    /**
+     * Called when the back-stack's state is saved.
+     *
+     * @param depth the number of entries in the back-stack.
+     * @param size  the size in bytes of the saved state once parcelled.
+     */
+    public void onSaveState(int depth, int size) {
+    }
+
+    /**
+     * Called when a back-stack entry is dropped because its args and saved state couldn't be
+     * read back from disk.
+     *
+     * @param name the class name of the entry's fragment.
+     */
+    public void onEntryDropped(@NonNull String name) {
+    }
+}
@@ -0,0 +1,16 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A navigation posted from any thread, run on the main thread.
+ *
+ * @see FragmentBackStack#post(NavigationRequest)
+ */
+public interface NavigationRequest {
+    /**
+     * Performs the navigation, for example by calling {@link FragmentBackStack#push(android.support.v4.app.Fragment)}.
+     * This is called on the main thread.
+     */
+    void navigate(@NonNull FragmentBackStack backStack);
+}
@@ -0,0 +1,44 @@
+package me.tatarka.fragstack;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.Nullable;
+
+final class Parcels {
+
+    private Parcels() {
+    }
+
+    /**
+     * Returns the size in bytes of the given parcelable once parcelled.
+     */
+    static int sizeOf(@Nullable Parcelable parcelable) {
+        if (parcelable == null) {
+            return 0;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(parcelable, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the given bundle once parcelled.
+     */
+    static int sizeOf(@Nullable Bundle bundle) {
+        if (bundle == null) {
+            return 0;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
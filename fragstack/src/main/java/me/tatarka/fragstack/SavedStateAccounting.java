@@ -0,0 +1,146 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import me.tatarka.fragstack.core.EntryList;
+
+/**
+ * Keeps running totals of the args and saved state held by a back-stack, by fragment class. Each
+ * entry's sizes are measured when its state is captured and the totals are updated as entries are
+ * added, removed or change, so they never have to be summed over the whole back-stack. Entries
+ * that have been spilled to disk aren't counted. Encoded args shared between entries after a
+ * restore are counted once, in the total and in each class that uses them.
+ */
+final class SavedStateAccounting implements EntryList.Listener<BackStackTrackingFragment.BackStackEntry> {
+
+    private int totalSize;
+    private int entryCount;
+    private final HashMap<String, SavedStateUsage.ClassUsage> classes = new HashMap<>();
+    /**
+     * The number of counted entries using each encoded args, overall and by class.
+     */
+    private final IdentityHashMap<byte[], Integer> encodedArgsCounts = new IdentityHashMap<>();
+    private final HashMap<String, IdentityHashMap<byte[], Integer>> classEncodedArgsCounts = new HashMap<>();
+
+    @Override
+    public void onAdded(BackStackTrackingFragment.BackStackEntry entry) {
+        // An entry is only in one back-stack at a time, anything it was counted in is gone.
+        entry.counted = false;
+        entry.accounting = this;
+        count(entry);
+    }
+
+    @Override
+    public void onRemoved(BackStackTrackingFragment.BackStackEntry entry) {
+        uncount(entry);
+        entry.accounting = null;
+    }
+
+    /**
+     * Updates the totals after the entry's sizes changed or it was spilled or read back.
+     */
+    void update(BackStackTrackingFragment.BackStackEntry entry) {
+        uncount(entry);
+        count(entry);
+    }
+
+    int getTotalSize() {
+        return totalSize;
+    }
+
+    @NonNull
+    SavedStateUsage getUsage() {
+        return new SavedStateUsage(totalSize, entryCount, classes.values());
+    }
+
+    private void count(BackStackTrackingFragment.BackStackEntry entry) {
+        if (entry.isSpilled()) {
+            return;
+        }
+        int argsSize = entry.getArgsSize();
+        int savedStateSize = entry.getSavedStateSize();
+        byte[] encodedArgs = entry.getEncodedArgs();
+        entry.counted = true;
+        entry.countedArgsSize = argsSize;
+        entry.countedSavedStateSize = savedStateSize;
+        entry.countedEncodedArgs = encodedArgs;
+        SavedStateUsage.ClassUsage usage = classes.get(entry.name);
+        if (usage == null) {
+            usage = new SavedStateUsage.ClassUsage(entry.name);
+            classes.put(entry.name, usage);
+        }
+        boolean firstInClass = true;
+        boolean first = true;
+        if (encodedArgs != null) {
+            IdentityHashMap<byte[], Integer> classCounts = classEncodedArgsCounts.get(entry.name);
+            if (classCounts == null) {
+                classCounts = new IdentityHashMap<>();
+                classEncodedArgsCounts.put(entry.name, classCounts);
+            }
+            firstInClass = increment(classCounts, encodedArgs);
+            first = increment(encodedArgsCounts, encodedArgs);
+        }
+        if (firstInClass) {
+            usage.argsSize += argsSize;
+        }
+        usage.savedStateSize += savedStateSize;
+        usage.entryCount++;
+        totalSize += (first ? argsSize : 0) + savedStateSize;
+        entryCount++;
+    }
+
+    private void uncount(BackStackTrackingFragment.BackStackEntry entry) {
+        if (!entry.counted) {
+            return;
+        }
+        entry.counted = false;
+        byte[] encodedArgs = entry.countedEncodedArgs;
+        entry.countedEncodedArgs = null;
+        boolean lastInClass = true;
+        boolean last = true;
+        if (encodedArgs != null) {
+            IdentityHashMap<byte[], Integer> classCounts = classEncodedArgsCounts.get(entry.name);
+            lastInClass = decrement(classCounts, encodedArgs);
+            if (classCounts.isEmpty()) {
+                classEncodedArgsCounts.remove(entry.name);
+            }
+            last = decrement(encodedArgsCounts, encodedArgs);
+        }
+        SavedStateUsage.ClassUsage usage = classes.get(entry.name);
+        if (lastInClass) {
+            usage.argsSize -= entry.countedArgsSize;
+        }
+        usage.savedStateSize -= entry.countedSavedStateSize;
+        usage.entryCount--;
+        if (usage.entryCount == 0) {
+            classes.remove(entry.name);
+        }
+        totalSize -= (last ? entry.countedArgsSize : 0) + entry.countedSavedStateSize;
+        entryCount--;
+    }
+
+    /**
+     * @return true if this is the first use of the encoded args.
+     */
+    private static boolean increment(IdentityHashMap<byte[], Integer> counts, byte[] encodedArgs) {
+        Integer count = counts.get(encodedArgs);
+        counts.put(encodedArgs, count == null ? 1 : count + 1);
+        return count == null;
+    }
+
+    /**
+     * @return true if this was the last use of the encoded args.
+     */
+    private static boolean decrement(IdentityHashMap<byte[], Integer> counts, byte[] encodedArgs) {
+        int count = counts.get(encodedArgs);
+        if (count == 1) {
+            counts.remove(encodedArgs);
+            return true;
+        }
+        counts.put(encodedArgs, count - 1);
+        return false;
+    }
+}
@@ -0,0 +1,131 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Bounds the total size of the args and saved state held by the back-stack, to stay clear of a
+ * {@link android.os.TransactionTooLargeException} when the activity's state is saved. The budget
+ * is checked every time an entry's state is captured or the back-stack changes, and
+ * {@link #onOverBudget(SavedStateUsage, List, EvictionPolicy.Evictor)} is called when it's
+ * exceeded.
+ *
+ * @see FragmentBackStack#setSavedStateBudget(SavedStateBudget)
+ */
+public abstract class SavedStateBudget {
+    private static final String TAG = "SavedStateBudget";
+
+    /**
+     * Logs a warning with the usage of each fragment class when over budget, without changing
+     * the back-stack.
+     */
+    @NonNull
+    public static SavedStateBudget warn(int maxBytes) {
+        return new SavedStateBudget(maxBytes) {
+            @Override
+            public void onOverBudget(@NonNull SavedStateUsage usage, @NonNull List<EvictionPolicy.Entry> entries, @NonNull EvictionPolicy.Evictor evictor) {
+                Log.w(TAG, "Back-stack saved state is over budget (" + usage.getTotalSize() + " > " + getMaxBytes() + " bytes): " + usage.getClasses());
+            }
+        };
+    }
+
+    /**
+     * Strips the saved state of the oldest entries until back under budget. Stripped entries will
+     * be recreated from just their class name and args.
+     */
+    @NonNull
+    public static SavedStateBudget strip(int maxBytes) {
+        return new SavedStateBudget(maxBytes) {
+            @Override
+            public void onOverBudget(@NonNull SavedStateUsage usage, @NonNull List<EvictionPolicy.Entry> entries, @NonNull EvictionPolicy.Evictor evictor) {
+                int total = usage.getTotalSize();
+                for (int i = 0; i < entries.size() && total > getMaxBytes(); i++) {
+                    EvictionPolicy.Entry entry = entries.get(i);
+                    if (entry.isSpilled()) {
+                        continue;
+                    }
+                    int size = entry.getSavedStateSize();
+                    if (size > 0) {
+                        evictor.strip(i);
+                        total -= size;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the oldest entries to disk until back under budget. They are read back when they
+     * are popped to, so unlike {@link #strip(int)} no state is lost.
+     */
+    @NonNull
+    public static SavedStateBudget spill(int maxBytes) {
+        return new SavedStateBudget(maxBytes) {
+            @Override
+            public void onOverBudget(@NonNull SavedStateUsage usage, @NonNull List<EvictionPolicy.Entry> entries, @NonNull EvictionPolicy.Evictor evictor) {
+                int total = usage.getTotalSize();
+                for (int i = 0; i < entries.size() && total > getMaxBytes(); i++) {
+                    EvictionPolicy.Entry entry = entries.get(i);
+                    if (entry.isSpilled()) {
+                        continue;
+                    }
+                    int size = entry.getArgsSize() + entry.getSavedStateSize();
+                    if (evictor.spill(i)) {
+                        total -= size;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops the oldest entries until back under budget.
+     */
+    @NonNull
+    public static SavedStateBudget drop(int maxBytes) {
+        return new SavedStateBudget(maxBytes) {
+            @Override
+            public void onOverBudget(@NonNull SavedStateUsage usage, @NonNull List<EvictionPolicy.Entry> entries, @NonNull EvictionPolicy.Evictor evictor) {
+                int total = usage.getTotalSize();
+                int count = 0;
+                for (; count < entries.size() && total > getMaxBytes(); count++) {
+                    EvictionPolicy.Entry entry = entries.get(count);
+                    if (!entry.isSpilled()) {
+                        total -= entry.getArgsSize() + entry.getSavedStateSize();
+                    }
+                }
+                if (count > 0) {
+                    evictor.drop(count);
+                }
+            }
+        };
+    }
+
+    private final int maxBytes;
+
+    protected SavedStateBudget(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the total size in bytes the back-stack's args and saved state may take up.
+     */
+    public final int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Called when the total size of the back-stack's args and saved state is over
+     * {@link #getMaxBytes()}.
+     *
+     * @param usage   the current usage, broken down by fragment class.
+     * @param entries the entries in the back-stack, oldest first.
+     * @param evictor used to drop, strip or spill entries.
+     */
+    public abstract void onOverBudget(@NonNull SavedStateUsage usage, @NonNull List<EvictionPolicy.Entry> entries, @NonNull EvictionPolicy.Evictor evictor);
+}
@@ -0,0 +1,150 @@
+package me.tatarka.fragstack;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The parcelled size of the args and saved state held by the back-stack, broken down by fragment
+ * class. Sizes are measured when an entry's state is captured and kept as running totals, so
+ * getting the usage doesn't parcel anything or go over the whole back-stack. Entries that have been
+ * spilled to disk aren't counted as they are in neither memory nor the saved instance state.
+ * <p>
+ * Equal args are only written once to the saved instance state. Entries restored with shared args
+ * count them once, but entries whose args are in memory each count their own, so with equal args
+ * in memory this is an upper bound of the saved size.
+ *
+ * @see FragmentBackStack#getSavedStateUsage()
+ * @see SavedStateBudget
+ */
+public final class SavedStateUsage {
+
+    private final int totalSize;
+    private final int entryCount;
+    private final List<ClassUsage> classes;
+
+    /**
+     * Creates a snapshot of the given running totals.
+     */
+    SavedStateUsage(int totalSize, int entryCount, Collection<ClassUsage> classes) {
+        this.totalSize = totalSize;
+        this.entryCount = entryCount;
+        ArrayList<ClassUsage> sorted = new ArrayList<>(classes.size());
+        for (ClassUsage usage : classes) {
+            sorted.add(new ClassUsage(usage));
+        }
+        Collections.sort(sorted, LARGEST_FIRST);
+        this.classes = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns the total size in bytes of the args and saved state of all counted entries.
+     */
+    public int getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns the number of entries counted.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns the usage of each fragment class in the back-stack, largest first.
+     */
+    @NonNull
+    public List<ClassUsage> getClasses() {
+        return classes;
+    }
+
+    @Override
+    public String toString() {
+        return "SavedStateUsage{" +
+                "totalSize=" + totalSize +
+                ", entryCount=" + entryCount +
+                ", classes=" + classes +
+                '}';
+    }
+
+    /**
+     * The running totals for all entries of a single fragment class.
+     */
+    public static final class ClassUsage {
+        private final String name;
+        int argsSize;
+        int savedStateSize;
+        int entryCount;
+
+        ClassUsage(String name) {
+            this.name = name;
+        }
+
+        ClassUsage(ClassUsage usage) {
+            this.name = usage.name;
+            this.argsSize = usage.argsSize;
+            this.savedStateSize = usage.savedStateSize;
+            this.entryCount = usage.entryCount;
+        }
+
+        /**
+         * Returns the class name of the fragment.
+         */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the total size in bytes of the args of all entries of this class.
+         */
+        public int getArgsSize() {
+            return argsSize;
+        }
+
+        /**
+         * Returns the total size in bytes of the saved state of all entries of this class.
+         */
+        public int getSavedStateSize() {
+            return savedStateSize;
+        }
+
+        /**
+         * Returns the total size in bytes of the args and saved state of all entries of this
+         * class.
+         */
+        public int getTotalSize() {
+            return argsSize + savedStateSize;
+        }
+
+        /**
+         * Returns the number of entries of this class.
+         */
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{" +
+                    "argsSize=" + argsSize +
+                    ", savedStateSize=" + savedStateSize +
+                    ", entryCount=" + entryCount +
+                    '}';
+        }
+    }
+
+    private static final Comparator<ClassUsage> LARGEST_FIRST = new Comparator<ClassUsage>() {
+        @Override
+        public int compare(ClassUsage a, ClassUsage b) {
+            int aSize = a.getTotalSize();
+            int bSize = b.getTotalSize();
+            return aSize < bSize ? 1 : (aSize == bSize ? 0 : -1);
+        }
+    };
+}
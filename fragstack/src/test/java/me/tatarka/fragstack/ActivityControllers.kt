@@ -0,0 +1,48 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.os.Parcel
+import android.support.v4.app.FragmentActivity
+import org.robolectric.Robolectric
+import org.robolectric.android.controller.ActivityController
+import org.robolectric.shadows.ShadowLooper
+
+/**
+ * Runs everything posted to the paused main looper, including delayed tasks.
+ */
+internal fun runLoop() {
+    ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+}
+
+internal fun ActivityController<FragmentActivity>.backStack() =
+    FragmentBackStack.of(get().supportFragmentManager)
+
+internal fun ActivityController<FragmentActivity>.trackingFragment() =
+    get().supportFragmentManager.findFragmentByTag(BackStackTrackingFragment.TAG) as BackStackTrackingFragment
+
+/**
+ * Saves the activity's state and destroys it, then creates a new activity from that state after
+ * round-tripping it through a parcel like the system does on process death.
+ *
+ * @param onSaved called with the size of the parcelled state.
+ */
+internal fun ActivityController<FragmentActivity>.recreateAfterProcessDeath(
+    onSaved: (Int) -> Unit = {}
+): ActivityController<FragmentActivity> {
+    val outState = Bundle()
+    saveInstanceState(outState)
+    pause().stop().destroy()
+    val parcel = Parcel.obtain()
+    parcel.writeBundle(outState)
+    onSaved(parcel.dataSize())
+    parcel.setDataPosition(0)
+    val savedState = parcel.readBundle(FragmentBackStack::class.java.classLoader)
+    parcel.recycle()
+    return Robolectric.buildActivity(FragmentActivity::class.java)
+        .create(savedState)
+        .start()
+        .restoreInstanceState(savedState)
+        .postCreate(savedState)
+        .resume()
+        .visible()
+}
@@ -0,0 +1,169 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.support.v4.app.FragmentActivity
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.android.controller.ActivityController
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class BackStackStateStoreTest {
+
+    private lateinit var controller: ActivityController<FragmentActivity>
+
+    @Test
+    fun reads_back_written_entry() {
+        val store = BackStackStateStore.open(RuntimeEnvironment.application, "round_trip")
+        val entry = BackStackTrackingFragment.BackStackEntry("name", "tag", Bundle().apply { putString("key", "value") })
+        entry.id = 1
+
+        assertTrue(store.write(entry))
+        entry.release()
+
+        assertTrue(store.read(entry))
+        entry.decodeState()
+        assertEquals("value", entry.args!!.getString("key"))
+    }
+
+    @Test
+    fun read_fails_for_missing_entry() {
+        val store = BackStackStateStore.open(RuntimeEnvironment.application, "missing")
+        val entry = BackStackTrackingFragment.BackStackEntry("name", "tag", Bundle())
+        entry.id = 1
+
+        assertFalse(store.read(entry))
+    }
+
+    @Test
+    fun pops_back_to_spilled_entry() {
+        val backStack = startWithThreeScreens()
+        val tf = trackingFragment()
+        tf.spillEntries(1)
+        assertTrue(tf.backStack.get(0).isSpilled)
+
+        backStack.pop()
+        runLoop()
+        backStack.pop()
+        runLoop()
+
+        assertEquals(1, currentScreenId())
+    }
+
+    @Test
+    fun drops_spilled_entry_that_cannot_be_read() {
+        val backStack = startWithThreeScreens()
+        val dropped = mutableListOf<String>()
+        backStack.setNavigationListener(object : NavigationListener() {
+            override fun onEntryDropped(name: String) {
+                dropped += name
+            }
+        })
+        val tf = trackingFragment()
+        tf.spillEntries(1)
+        BackStackStateStore.root(RuntimeEnvironment.application).deleteRecursively()
+
+        backStack.pop()
+        runLoop()
+        backStack.pop()
+        runLoop()
+
+        assertEquals(listOf(ScreenFragment::class.java.name), dropped)
+        assertEquals(2, currentScreenId())
+        assertEquals(0, tf.backStack.size())
+    }
+
+    @Test
+    fun keeps_retained_entry_restored_from_disk_when_trimmed() {
+        fun configure(backStack: FragmentBackStack) =
+            backStack.setSaveStateToDisk(true).setRetainedFragmentCount(1)
+        startWithThreeScreens { configure(it) }
+        controller = controller.recreateAfterProcessDeath()
+        configure(controller.backStack()).startWith(android.R.id.content, screen(-1))
+        runLoop()
+        val entry = trackingFragment().backStack.get(1)
+        assertTrue(entry.isSpilled)
+        assertNotNull(entry.retainedFragment)
+
+        trackingFragment().trimRetainedFragments(0)
+        runLoop()
+        // Saving again must not lose the args of the released entry.
+        controller = controller.recreateAfterProcessDeath()
+        val dropped = mutableListOf<String>()
+        configure(controller.backStack())
+            .setNavigationListener(object : NavigationListener() {
+                override fun onEntryDropped(name: String) {
+                    dropped += name
+                }
+            })
+            .startWith(android.R.id.content, screen(-1))
+        runLoop()
+
+        controller.backStack().pop()
+        runLoop()
+        assertEquals(2, currentScreenId())
+        controller.backStack().pop()
+        runLoop()
+        assertEquals(1, currentScreenId())
+        assertEquals(emptyList<String>(), dropped)
+    }
+
+    @Test
+    fun sweeps_stores_from_before_boot() {
+        val root = File(RuntimeEnvironment.application.cacheDir, "sweep")
+        val old = File(root, "old").apply { mkdirs() }
+        File(old, "1").writeText("state")
+        old.setLastModified(1000)
+        val current = File(root, "current").apply { mkdirs() }
+        File(current, "1").writeText("state")
+        current.setLastModified(3000)
+
+        BackStackStateStore.sweep(root, 2000)
+
+        assertFalse(old.exists())
+        assertTrue(File(current, "1").exists())
+    }
+
+    @Test
+    fun sweep_ignores_missing_root() {
+        val root = File(RuntimeEnvironment.application.cacheDir, "missing")
+
+        BackStackStateStore.sweep(root, 2000)
+
+        assertNull(root.listFiles())
+    }
+
+    private fun startWithThreeScreens(configure: (FragmentBackStack) -> Unit = {}): FragmentBackStack {
+        controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        ShadowLooper.pauseMainLooper()
+        val backStack = FragmentBackStack.of(controller.get().supportFragmentManager)
+        configure(backStack)
+        backStack.startWith(android.R.id.content, screen(1))
+        runLoop()
+        backStack.push(screen(2))
+        runLoop()
+        backStack.push(screen(3))
+        runLoop()
+        return backStack
+    }
+
+    private fun screen(id: Int) = ScreenFragment().apply {
+        arguments = Bundle().apply { putInt(ARG_ID, id) }
+    }
+
+    private fun trackingFragment() = controller.trackingFragment()
+
+    private fun currentScreenId() =
+        (controller.get().supportFragmentManager.findFragmentById(android.R.id.content) as ScreenFragment).screenId
+}
@@ -0,0 +1,222 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.support.v4.app.Fragment
+import android.support.v4.app.FragmentActivity
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.FrameLayout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.android.controller.ActivityController
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+private const val OPERATIONS = 2000
+private const val MAX_AVERAGE_NANOS = 5_000_000L
+private const val MAX_AVERAGE_ALLOCATED = 256 * 1024L
+// Recreating the activity dominates process death, so it gets its own bounds.
+private const val MAX_AVERAGE_PROCESS_DEATH_NANOS = 50_000_000L
+private const val MAX_AVERAGE_PROCESS_DEATH_ALLOCATED = 4 * 1024 * 1024L
+private const val MAX_SAVED_STATE_SIZE = 64 * 1024
+
+/**
+ * Fires random sequences of operations at the back-stack, checking it against a simple model after
+ * each main-loop turn. The latency, allocation and saved-state size of each operation are written
+ * to a JSON report under build/reports/stress and checked against bounds.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class FragmentBackStackStressTest {
+
+    private lateinit var controller: ActivityController<FragmentActivity>
+    private val stats = mutableMapOf<String, Stats>()
+    private val savedStateSizes = mutableListOf<Int>()
+    private var nextId = 0
+
+    @Test
+    fun random_operations_seed_1() = runRandomOperations(1)
+
+    @Test
+    fun random_operations_seed_2() = runRandomOperations(2)
+
+    @Test
+    fun random_operations_seed_3() = runRandomOperations(3)
+
+    private fun runRandomOperations(seed: Long) {
+        val random = Random(seed)
+        controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        ShadowLooper.pauseMainLooper()
+
+        var current = Screen(nextId++, null)
+        val stack = mutableListOf<Screen>()
+        backStack().startWith(android.R.id.content, current.newFragment(), current.tag)
+        runLoop()
+
+        repeat(OPERATIONS) {
+            val op = random.nextInt(100)
+            val start = System.nanoTime()
+            val startAllocated = allocatedBytes()
+            val name = when {
+                op < 40 -> {
+                    // Push up to three fragments in the same turn.
+                    repeat(1 + random.nextInt(3)) {
+                        val screen = Screen(nextId++, if (random.nextInt(4) == 0) "tag${random.nextInt(5)}" else null)
+                        backStack().push(screen.newFragment(), screen.tag)
+                        stack += current
+                        current = screen
+                    }
+                    "push"
+                }
+                op < 65 -> {
+                    backStack().pop()
+                    if (stack.isNotEmpty()) {
+                        current = stack.removeAt(stack.lastIndex)
+                    }
+                    "pop"
+                }
+                op < 75 -> {
+                    backStack().popImmediate()
+                    if (stack.isNotEmpty()) {
+                        current = stack.removeAt(stack.lastIndex)
+                    }
+                    "popImmediate"
+                }
+                op < 85 -> {
+                    val tag = "tag${random.nextInt(5)}"
+                    backStack().popInclusive(tag)
+                    val index = stack.indexOfLast { it.tag == tag }
+                    if (index != -1) {
+                        val target = if (index > 0) index - 1 else 0
+                        current = stack[target]
+                        stack.subList(target, stack.size).clear()
+                    }
+                    "popInclusive"
+                }
+                op < 95 -> {
+                    val tag = "tag${random.nextInt(5)}"
+                    backStack().popExclusive(tag)
+                    val index = stack.indexOfLast { it.tag == tag }
+                    if (index != -1) {
+                        current = stack[index]
+                        stack.subList(index, stack.size).clear()
+                    }
+                    "popExclusive"
+                }
+                else -> {
+                    recreateAfterProcessDeath()
+                    "processDeath"
+                }
+            }
+            runLoop()
+            stats.getOrPut(name) { Stats() }.add(System.nanoTime() - start, allocatedBytes() - startAllocated)
+            assertState(current, stack)
+        }
+
+        writeReport(seed)
+        assertWithinBounds(seed)
+    }
+
+    private fun backStack() = controller.backStack()
+
+    private fun recreateAfterProcessDeath() {
+        controller = controller.recreateAfterProcessDeath { savedStateSizes += it }
+        // The initial fragment is ignored as the container is already restored.
+        backStack().startWith(android.R.id.content, Screen(-1, null).newFragment())
+    }
+
+    private fun assertState(current: Screen, stack: List<Screen>) {
+        val fm = controller.get().supportFragmentManager
+        val fragments = fm.fragments.filterIsInstance<ScreenFragment>()
+        assertEquals("only the current fragment is added", 1, fragments.size)
+        assertEquals(current.id, (fm.findFragmentById(android.R.id.content) as ScreenFragment).screenId)
+        val tf = controller.trackingFragment()
+        val entries = (0 until tf.backStack.size()).map { tf.backStack.get(it).also { entry -> tf.loadEntry(entry) } }
+        assertEquals(stack.map { it.id }, entries.map { it.args!!.getInt(ARG_ID) })
+        assertEquals(stack.map { it.tag }, entries.map { it.tag })
+        for (tag in stack.mapNotNull { it.tag }.distinct()) {
+            assertEquals(stack.indexOfLast { it.tag == tag }, tf.backStack.lastIndexOf(tag))
+        }
+    }
+
+    private fun allocatedBytes(): Long {
+        val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean ?: return 0
+        return bean.getThreadAllocatedBytes(Thread.currentThread().id)
+    }
+
+    private fun writeReport(seed: Long) {
+        val dir = File(System.getProperty("fragstack.stressReportDir") ?: "build/reports/stress")
+        dir.mkdirs()
+        val operations = stats.toSortedMap().entries.joinToString(",\n") { (name, stat) ->
+            """    "$name": {"count": ${stat.count}, "averageNanos": ${stat.totalNanos / stat.count}, """ +
+                    """"maxNanos": ${stat.maxNanos}, "averageAllocatedBytes": ${stat.totalAllocated / stat.count}}"""
+        }
+        File(dir, "seed-$seed.json").writeText(
+            """{
+  "seed": $seed,
+  "operations": {
+$operations
+  },
+  "savedStateSizes": {"count": ${savedStateSizes.size}, "averageBytes": ${savedStateSizes.average().toInt()}, "maxBytes": ${savedStateSizes.max() ?: 0}}
+}
+"""
+        )
+    }
+
+    /**
+     * Checks the averages against bounds with some headroom for slow build machines, the report has
+     * the actual numbers to compare between runs.
+     */
+    private fun assertWithinBounds(seed: Long) {
+        for ((name, stat) in stats) {
+            val message = "$name (seed=$seed)"
+            val processDeath = name == "processDeath"
+            val maxNanos = if (processDeath) MAX_AVERAGE_PROCESS_DEATH_NANOS else MAX_AVERAGE_NANOS
+            val maxAllocated = if (processDeath) MAX_AVERAGE_PROCESS_DEATH_ALLOCATED else MAX_AVERAGE_ALLOCATED
+            assertTrue("$message average latency ${stat.totalNanos / stat.count}ns", stat.totalNanos / stat.count < maxNanos)
+            assertTrue("$message average allocation ${stat.totalAllocated / stat.count}B", stat.totalAllocated / stat.count < maxAllocated)
+        }
+        for (size in savedStateSizes) {
+            assertTrue("saved state ${size}B (seed=$seed)", size < MAX_SAVED_STATE_SIZE)
+        }
+    }
+
+    private class Stats {
+        var count = 0
+        var totalNanos = 0L
+        var maxNanos = 0L
+        var totalAllocated = 0L
+
+        fun add(nanos: Long, allocated: Long) {
+            count++
+            totalNanos += nanos
+            maxNanos = maxOf(maxNanos, nanos)
+            totalAllocated += allocated
+        }
+    }
+
+    private data class Screen(val id: Int, val tag: String?) {
+        fun newFragment() = ScreenFragment().apply {
+            arguments = Bundle().apply { putInt(ARG_ID, id) }
+        }
+    }
+}
+
+internal const val ARG_ID = "id"
+
+class ScreenFragment : Fragment() {
+    val screenId: Int
+        get() = arguments!!.getInt(ARG_ID)
+
+    override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
+        return FrameLayout(inflater.context)
+    }
+}
@@ -0,0 +1,67 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.support.v4.app.FragmentActivity
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.android.controller.ActivityController
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class NavigationRequestsTest {
+
+    private lateinit var controller: ActivityController<FragmentActivity>
+
+    @Test
+    fun runs_held_immediate_navigation_once_started() {
+        controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        ShadowLooper.pauseMainLooper()
+        controller.backStack().startWith(android.R.id.content, screen(1))
+        runLoop()
+        controller.backStack().push(screen(2))
+        runLoop()
+        stop()
+
+        controller.backStack().post { it.popImmediate() }
+        runLoop()
+        assertEquals(2, currentScreenId())
+
+        controller.start()
+        runLoop()
+
+        assertEquals(1, currentScreenId())
+    }
+
+    @Test
+    fun runs_navigation_posted_before_the_back_stack_is_used() {
+        controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        ShadowLooper.pauseMainLooper()
+        stop()
+
+        controller.backStack().post { it.startWith(android.R.id.content, screen(1)) }
+        runLoop()
+        // Instances are only weakly cached, the requests must not be lost with this one.
+        System.gc()
+
+        controller.start()
+        runLoop()
+
+        assertEquals(1, currentScreenId())
+    }
+
+    private fun stop() {
+        controller.pause().saveInstanceState(Bundle()).stop()
+    }
+
+    private fun screen(id: Int) = ScreenFragment().apply {
+        arguments = Bundle().apply { putInt(ARG_ID, id) }
+    }
+
+    private fun currentScreenId() =
+        (controller.get().supportFragmentManager.findFragmentById(android.R.id.content) as ScreenFragment).screenId
+}
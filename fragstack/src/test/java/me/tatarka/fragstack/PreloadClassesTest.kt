@@ -0,0 +1,83 @@
+package me.tatarka.fragstack
+
+import android.content.res.Configuration
+import android.os.Bundle
+import android.support.v4.app.FragmentActivity
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class PreloadClassesTest {
+
+    @Test
+    fun loads_each_distinct_class_in_the_background() {
+        val classLoader = RecordingClassLoader(javaClass.classLoader, 2)
+        val entries = listOf(
+            ScreenFragment::class.java.name,
+            ViewStateFragment::class.java.name,
+            ScreenFragment::class.java.name
+        ).map { BackStackTrackingFragment.BackStackEntry(it, null, null) }
+
+        BackStackTrackingFragment.preloadClasses(classLoader, entries)
+
+        assertTrue(classLoader.latch.await(5, TimeUnit.SECONDS))
+        assertEquals(
+            listOf(ScreenFragment::class.java.name, ViewStateFragment::class.java.name),
+            classLoader.loaded.sorted()
+        )
+        assertTrue(classLoader.threads.none { it == Thread.currentThread() })
+    }
+
+    @Test
+    fun ignores_missing_classes() {
+        val classLoader = RecordingClassLoader(javaClass.classLoader, 2)
+        val entries = listOf("me.tatarka.fragstack.MissingFragment", ScreenFragment::class.java.name)
+            .map { BackStackTrackingFragment.BackStackEntry(it, null, null) }
+
+        BackStackTrackingFragment.preloadClasses(classLoader, entries)
+
+        assertTrue(classLoader.latch.await(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun keeps_setting_across_configuration_changes() {
+        var controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        controller.backStack()
+            .setPreloadClasses(true)
+            .startWith(android.R.id.content, ScreenFragment().apply { arguments = Bundle().apply { putInt(ARG_ID, 1) } })
+        runLoop()
+
+        controller.configurationChange(Configuration(controller.get().resources.configuration).apply {
+            orientation = if (orientation == Configuration.ORIENTATION_PORTRAIT) Configuration.ORIENTATION_LANDSCAPE else Configuration.ORIENTATION_PORTRAIT
+        })
+        assertTrue(controller.trackingFragment().preloadClasses)
+
+        controller = controller.recreateAfterProcessDeath()
+        assertTrue(controller.trackingFragment().preloadClasses)
+    }
+
+    private class RecordingClassLoader(parent: ClassLoader, count: Int) : ClassLoader(parent) {
+        val latch = CountDownLatch(count)
+        val loaded: MutableList<String> = Collections.synchronizedList(mutableListOf())
+        val threads: MutableList<Thread> = Collections.synchronizedList(mutableListOf())
+
+        override fun loadClass(name: String): Class<*> {
+            loaded += name
+            threads += Thread.currentThread()
+            try {
+                return super.loadClass(name)
+            } finally {
+                latch.countDown()
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.os.Parcel
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class SavedBackStackTest {
+
+    @Test
+    fun restores_entries_encoded_until_used() {
+        val restored = roundTrip(listOf(entry("First", "a"), entry("Second", "b"), entry("Third", "c")))
+
+        assertEquals(listOf("First", "Second", "Third"), restored.entries.map { it.name })
+        assertTrue(restored.entries.all { it.isEncoded })
+
+        val last = restored.entries.last()
+        last.decodeState()
+
+        assertFalse(last.isEncoded)
+        assertEquals("c", last.args!!.getString("arg"))
+        assertTrue(restored.entries[0].isEncoded)
+        assertTrue(restored.entries[1].isEncoded)
+    }
+
+    @Test
+    fun writes_equal_args_once() {
+        val payload = "x".repeat(1000)
+        val shared = (1..3).map { entry("Screen", payload) }
+        val distinct = (1..3).map { entry("Screen", payload.dropLast(1) + it) }
+
+        assertTrue(sizeOf(shared) < sizeOf(distinct) - 2 * payload.length)
+
+        val restored = roundTrip(shared)
+        for (entry in restored.entries) {
+            entry.decodeState()
+        }
+
+        assertTrue(restored.entries.all { it.args!!.getString("arg") == payload })
+        // Each entry still gets its own copy.
+        assertNotSame(restored.entries[0].args, restored.entries[1].args)
+    }
+
+    @Test
+    fun keeps_args_deduplicated_across_repeated_saves() {
+        val payload = "x".repeat(1000)
+        val distinct = (1..3).map { entry("Screen", payload.dropLast(1) + it) }
+        val restored = roundTrip((1..3).map { entry("Screen", payload) })
+        // Mix decoded and still encoded entries.
+        restored.entries[1].decodeState()
+
+        val savedAgain = roundTrip(restored.entries)
+
+        assertTrue(sizeOf(savedAgain.entries) < sizeOf(distinct) - 2 * payload.length)
+        for (entry in savedAgain.entries) {
+            entry.decodeState()
+            assertEquals(payload, entry.args!!.getString("arg"))
+        }
+    }
+
+    private fun entry(name: String, arg: String) =
+        BackStackTrackingFragment.BackStackEntry(name, null, Bundle().apply { putString("arg", arg) })
+
+    private fun sizeOf(entries: List<BackStackTrackingFragment.BackStackEntry>): Int {
+        val parcel = Parcel.obtain()
+        try {
+            BackStackTrackingFragment.SavedBackStack(ArrayList(entries)).writeToParcel(parcel, 0)
+            return parcel.dataSize()
+        } finally {
+            parcel.recycle()
+        }
+    }
+
+    private fun roundTrip(entries: List<BackStackTrackingFragment.BackStackEntry>): BackStackTrackingFragment.SavedBackStack {
+        val parcel = Parcel.obtain()
+        try {
+            BackStackTrackingFragment.SavedBackStack(ArrayList(entries)).writeToParcel(parcel, 0)
+            parcel.setDataPosition(0)
+            return BackStackTrackingFragment.SavedBackStack.CREATOR.createFromParcel(parcel)
+        } finally {
+            parcel.recycle()
+        }
+    }
+}
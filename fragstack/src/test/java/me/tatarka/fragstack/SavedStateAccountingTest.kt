@@ -0,0 +1,116 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.os.Parcel
+import me.tatarka.fragstack.core.EntryList
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class SavedStateAccountingTest {
+
+    private val accounting = SavedStateAccounting()
+    private val backStack = EntryList<BackStackTrackingFragment.BackStackEntry>(accounting)
+
+    @Test
+    fun keeps_totals_by_class_as_entries_are_added_and_removed() {
+        val first = entry("First", "a")
+        val second = entry("Second", "bb")
+        val third = entry("First", "ccc")
+
+        backStack.addAll(listOf(first, second, third))
+
+        assertTotals()
+        assertEquals(3, accounting.usage.entryCount)
+        assertEquals(2, accounting.usage.classes.size)
+
+        backStack.removeLast()
+        assertTotals()
+        backStack.removeFirst(1)
+        assertTotals()
+        assertEquals(listOf("Second"), accounting.usage.classes.map { it.name })
+    }
+
+    @Test
+    fun spilled_entries_are_not_counted() {
+        val first = entry("First", "a")
+        val second = entry("Second", "bb")
+        backStack.addAll(listOf(first, second))
+
+        first.release()
+
+        assertTotals()
+        assertEquals(1, accounting.usage.entryCount)
+        assertEquals(second.argsSize, accounting.totalSize)
+
+        first.released = false
+        first.sizesChanged()
+
+        assertTotals()
+        assertEquals(2, accounting.usage.entryCount)
+    }
+
+    @Test
+    fun entries_moved_to_a_new_back_stack_are_counted_once() {
+        val first = entry("First", "a")
+        backStack.add(first)
+
+        val newAccounting = SavedStateAccounting()
+        EntryList<BackStackTrackingFragment.BackStackEntry>(newAccounting).addAll(backStack.asArrayList())
+        first.release()
+
+        assertEquals(0, newAccounting.totalSize)
+        assertEquals(0, newAccounting.usage.entryCount)
+    }
+
+    @Test
+    fun counts_shared_args_once() {
+        val parcel = Parcel.obtain()
+        BackStackTrackingFragment.SavedBackStack(arrayListOf(entry("First", "a"), entry("First", "a"), entry("Second", "a")))
+            .writeToParcel(parcel, 0)
+        parcel.setDataPosition(0)
+        val entries = BackStackTrackingFragment.SavedBackStack.CREATOR.createFromParcel(parcel).entries
+        parcel.recycle()
+        val argsSize = entries[0].argsSize
+        val savedStateSize = entries[0].savedStateSize
+
+        backStack.addAll(entries)
+
+        assertEquals(argsSize + 3 * savedStateSize, accounting.totalSize)
+        assertEquals(listOf(argsSize, argsSize), accounting.usage.classes.map { it.argsSize })
+
+        backStack.removeFirst(1)
+        assertEquals(argsSize + 2 * savedStateSize, accounting.totalSize)
+        assertEquals(listOf(argsSize, argsSize), accounting.usage.classes.map { it.argsSize })
+
+        // Decoded args are no longer shared.
+        entries[2].decodeState()
+        entries[2].sizesChanged()
+        assertEquals(2 * argsSize + 2 * savedStateSize, accounting.totalSize)
+
+        backStack.removeFirst(1)
+        assertEquals(argsSize + savedStateSize, accounting.totalSize)
+        assertEquals(listOf("Second"), accounting.usage.classes.map { it.name })
+    }
+
+    private fun entry(name: String, arg: String) =
+        BackStackTrackingFragment.BackStackEntry(name, null, Bundle().apply { putString("arg", arg) })
+
+    /**
+     * Checks the running totals against summing over the whole back-stack.
+     */
+    private fun assertTotals() {
+        val entries = backStack.asArrayList().filter { !it.isSpilled }
+        assertEquals(entries.sumBy { it.argsSize + it.savedStateSize }, accounting.totalSize)
+        assertEquals(entries.size, accounting.usage.entryCount)
+        for (usage in accounting.usage.classes) {
+            val classEntries = entries.filter { it.name == usage.name }
+            assertEquals(classEntries.size, usage.entryCount)
+            assertEquals(classEntries.sumBy { it.argsSize }, usage.argsSize)
+        }
+    }
+}
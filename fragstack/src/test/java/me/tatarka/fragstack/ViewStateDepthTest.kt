@@ -0,0 +1,114 @@
+package me.tatarka.fragstack
+
+import android.os.Bundle
+import android.support.v4.app.Fragment
+import android.support.v4.app.FragmentActivity
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.FrameLayout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.android.controller.ActivityController
+import org.robolectric.annotation.Config
+import org.robolectric.shadows.ShadowLooper
+
+/**
+ * Checks that entries deeper than the max view state depth come back without their view state,
+ * whether they are in memory, still encoded after process death or spilled to disk.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [27])
+class ViewStateDepthTest {
+
+    private lateinit var controller: ActivityController<FragmentActivity>
+
+    @Test
+    fun strips_entries_in_memory() {
+        startWithThreeFragments()
+
+        backStack().setMaxViewStateDepth(1)
+
+        assertPopsRestoreViewState(true, false)
+    }
+
+    @Test
+    fun strips_entries_still_encoded_after_process_death() {
+        startWithThreeFragments()
+        recreateAfterProcessDeath()
+        assertTrue(trackingFragment().backStack.get(0).isEncoded)
+
+        backStack().setMaxViewStateDepth(1)
+
+        assertPopsRestoreViewState(true, false)
+    }
+
+    @Test
+    fun strips_entries_spilled_to_disk() {
+        startWithThreeFragments()
+        trackingFragment().spillEntries(0)
+        assertTrue(trackingFragment().backStack.get(0).isSpilled)
+
+        backStack().setMaxViewStateDepth(1)
+
+        assertTrue(trackingFragment().backStack.get(0).isSpilled)
+        assertPopsRestoreViewState(true, false)
+    }
+
+    @Test
+    fun stripped_entries_stay_stripped_after_process_death() {
+        startWithThreeFragments()
+        backStack().setMaxViewStateDepth(1)
+        recreateAfterProcessDeath()
+
+        assertTrue(trackingFragment().backStack.get(0).viewStateStripped)
+        assertTrue(trackingFragment().backStack.get(0).isEncoded)
+    }
+
+    private fun startWithThreeFragments() {
+        controller = Robolectric.buildActivity(FragmentActivity::class.java).setup()
+        ShadowLooper.pauseMainLooper()
+        backStack().startWith(android.R.id.content, ViewStateFragment())
+        runLoop()
+        backStack().push(ViewStateFragment())
+        runLoop()
+        backStack().push(ViewStateFragment())
+        runLoop()
+    }
+
+    private fun assertPopsRestoreViewState(vararg restored: Boolean) {
+        for (expected in restored) {
+            backStack().pop()
+            runLoop()
+            val fragment = controller.get().supportFragmentManager.findFragmentById(android.R.id.content) as ViewStateFragment
+            assertEquals(expected, fragment.restoredViewState)
+        }
+    }
+
+    private fun recreateAfterProcessDeath() {
+        controller = controller.recreateAfterProcessDeath()
+        backStack().startWith(android.R.id.content, ViewStateFragment())
+    }
+
+    private fun backStack() = controller.backStack()
+
+    private fun trackingFragment() = controller.trackingFragment()
+}
+
+class ViewStateFragment : Fragment() {
+    var restoredViewState = false
+
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        restoredViewState = savedInstanceState?.containsKey("android:view_state") == true
+    }
+
+    override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?): View? {
+        // Views only save their state if they have an id.
+        return FrameLayout(inflater.context).apply { id = android.R.id.widget_frame }
+    }
+}